@@ -0,0 +1,51 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * run the benchmarks and write the results as JSON, for comparing runs.
+ * arguments: [result file] [benchmark regex...]
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] argv) throws RunnerException {
+
+		String result = argv.length > 0 ? argv[0] : "jmh-results.json";
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.resultFormat(ResultFormatType.JSON)
+				.result(result);
+
+		if (argv.length > 1) {
+			for (int i = 1; i < argv.length; i++) {
+				options.include(argv[i]);
+			}
+		} else {
+			options.include(ParserBenchmark.class.getSimpleName());
+			options.include(OutputBenchmark.class.getSimpleName());
+			options.include(PatternStoreBenchmark.class.getSimpleName());
+		}
+
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,108 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.util.Random;
+
+import com.mgz.afp.foca.FNI_FontIndex.FNI_RepeatingGroup;
+import com.mgz.afp.foca.FNM_FontPatternsMap.FNM_RepeatingGroup;
+
+/**
+ * generated input for the benchmarks, the same seed always gives the same data.
+ * whole spools come from SpoolGenerator.
+ */
+public class Fixtures {
+
+	/*
+	 * 1-bit pattern, roughly a quarter of the bits set
+	 */
+	public static byte[] bitmap(int bytes, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[bytes];
+		for (int i = 0; i < bytes; i++) {
+			data[i] = (byte) (random.nextInt() & random.nextInt());
+		}
+		return data;
+	}
+
+	/*
+	 * a decoded raster font, glyphs mapped to consecutive code points from '!' and
+	 * coded to consecutive EBCDIC code points from 0x40 (up to 256 glyphs are distinct)
+	 */
+	public static FontProperties font(int glyphs, int width, int height) {
+		FontProperties font = new FontProperties();
+		font.setNominalSize(10);
+		font.setMaxCharacterWidth(width);
+		font.setMaxCharacterHeight(height);
+		font.setMaxAscender(height * 3 / 4);
+		font.setMaxDescender(height / 4);
+
+		CodedFont coded = new CodedFont(font, "T1BENCH");
+		int cellWidth = (width + 7) / 8 * 8;
+		for (int i = 0; i < glyphs; i++) {
+			String gcgid = String.format("LA%06d", i);
+			GlyphProperties g = new GlyphProperties(gcgid, bitmap(cellWidth * height / 8, i), cellWidth, height);
+			g.setCharWidth(width);
+			g.setAdvance((short) (width * 1000 / height));
+			g.setAspace((short) 10);
+			g.setBspace((short) (width * 1000 / height - 20));
+			g.setCspace((short) 10);
+			g.setAscender(height * 3 / 4);
+			g.setDescender(height / 4);
+			g.setCodePoint((char) ('!' + i));
+			g.setCodePointEBCDIC((0x40 + i) & 0xFF);
+			font.addGlyph(gcgid, g);
+			coded.put(g.getCodePointEBCDIC(), g);
+		}
+		font.setCodedFont(coded);
+		return font;
+	}
+
+	/*
+	 * fill the parser's font index, pattern map and patterns the way FNI/FNM/FNG would, ready for EFN
+	 */
+	public static void fontPatterns(BaseParser parser, int glyphs, int width, int height) {
+		parser.currentFont = new FontProperties();
+		parser.fontIndexes.clear();
+		parser.fontPatternsMap.clear();
+		parser.currentFontPatterns.clear();
+
+		int cellSize = (width + 7) / 8 * height;
+		for (int i = 0; i < glyphs; i++) {
+			String gcgid = String.format("LA%06d", i);
+
+			FNM_RepeatingGroup pm = new FNM_RepeatingGroup();
+			pm.setCharacterBoxWidth((short) (width - 1));
+			pm.setCharacterBoxHeight((short) (height - 1));
+			pm.setPatternDataOffset((long) i * cellSize);
+			parser.fontPatternsMap.add(pm);
+			parser.currentFontPatterns.append(bitmap(cellSize, i));
+
+			FNI_RepeatingGroup fi = new FNI_RepeatingGroup();
+			fi.setGraphicCharacterGlobalID_GCGID(gcgid);
+			fi.setFnmIndex(i);
+			fi.setCharacterIncrement((short) (width * 1000 / height));
+			fi.setASpace((short) 10);
+			fi.setBSpace((short) (width * 1000 / height - 20));
+			fi.setCSpace((short) 10);
+			fi.setAscenderHeight((short) (height * 3 / 4));
+			fi.setDescenderDepth((short) (height / 4));
+			fi.setBaselineOffset((short) (height * 3 / 4));
+			parser.fontIndexes.put(gcgid, fi);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import com.mgz.afp.exceptions.AFPParserException;
+import com.mgz.afp.modca.EPG_EndPage;
+
+/**
+ * heap retained while converting generated spools of growing size. with pages written
+ * out as they end the retained heap should stay flat as the page count grows.
+ * arguments: [page counts...], default 1000 10000 100000. the PDF is discarded.
+ * exits with 1 when peak minus first sample grows past afpdf.bench.maxGrowthKB.
+ */
+public class HeapGrowth {
+
+	// pages between heap samples
+	static final int SAMPLE_PAGES = 1000;
+
+	// allowed growth of the retained heap between the first sample and the peak
+	static final long MAX_GROWTH_KB = Long.getLong("afpdf.bench.maxGrowthKB", 4096);
+
+	static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	/*
+	 * conversion that samples the heap left after a full collection every SAMPLE_PAGES pages
+	 */
+	static class SampledConvert extends StraightConvert {
+		int pages = 0;
+		long first = -1;
+		long peak = 0;
+
+		@Override
+		public void handleEPG_EndPage(EPG_EndPage sf) {
+			super.handleEPG_EndPage(sf);
+			if (++this.pages % SAMPLE_PAGES == 0) {
+				long retained = retained();
+				if (this.first < 0) {
+					this.first = retained;
+				}
+				this.peak = Math.max(this.peak, retained);
+			}
+		}
+	}
+
+	static long retained() {
+		MEMORY.gc();
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+
+	public static void main(String[] argv) throws IOException, AFPParserException {
+
+		int[] sizes = new int[] {1000, 10000, 100000};
+		if (argv.length > 0) {
+			sizes = new int[argv.length];
+			for (int i = 0; i < argv.length; i++) {
+				sizes[i] = Integer.parseInt(argv[i]);
+			}
+		}
+
+		boolean grew = false;
+		System.out.println(String.format("%10s %14s %14s %14s %10s", "pages", "first KB", "peak KB", "growth KB", "ms"));
+		for (int pages : sizes) {
+			File spool = File.createTempFile("heapgrowth", ".afp");
+			try {
+				SpoolGenerator generator = new SpoolGenerator();
+				generator.setPages(pages);
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+					generator.write(out);
+				}
+
+				long baseline = retained();
+				long started = System.nanoTime();
+
+				SampledConvert convert = new SampledConvert();
+				convert.setDumpFonts(false);
+				convert.applyOptions();
+				convert.setInputParser(spool.getPath());
+				convert.pdfOut = new OutputDocument(OutputBenchmark.NULL_OUTPUT);
+				convert.parse();
+				long peak = Math.max(convert.peak, retained());
+				convert.closeAll();
+
+				long first = convert.first < 0 ? peak : convert.first;
+				System.out.println(String.format("%10d %14d %14d %14d %10d", pages,
+						(first - baseline) / 1024, (peak - baseline) / 1024, (peak - first) / 1024,
+						(System.nanoTime() - started) / 1000000));
+				if ((peak - first) / 1024 > MAX_GROWTH_KB) {
+					System.err.println(pages + " pages: retained heap grew " + (peak - first) / 1024 + " KB, more than " + MAX_GROWTH_KB + " KB");
+					grew = true;
+				}
+			} finally {
+				spool.delete();
+			}
+		}
+		if (grew) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * pdf side hot paths. the document is written to a discarding stream,
+ * so the numbers include iText serialization but no disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+	// operations per page before it is ended and flushed
+	static final int OPERATIONS_PER_PAGE = 500;
+
+	static final byte[] BALANCE = "ACCOUNT BALANCE 1,234.56".getBytes(Charset.forName("Cp500"));
+
+	static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {}
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	@State(Scope.Thread)
+	public static class Document {
+		@Param({"200"})
+		int glyphs;
+
+		FontProperties font;
+		ResourceCache resources;
+		byte[] allGlyphs;
+		OutputDocument pdfOut;
+		int font1;
+		int operations;
+		int[] black = new int[] {0, 0, 0};
+		int[] red = new int[] {255, 0, 0};
+
+		@Setup(Level.Trial)
+		public void font() {
+			this.font = Fixtures.font(this.glyphs, 30, 42);
+			// streamed, the font stays resident
+			this.resources = new ResourceCache(null);
+			this.resources.addFont(this.font, null, 0, -1);
+			this.allGlyphs = new byte[this.font.getGlyphs().size()];
+			int i = 0;
+			for (GlyphProperties g : this.font.getGlyphs().values()) {
+				this.allGlyphs[i++] = (byte) g.getCodePointEBCDIC();
+			}
+		}
+		// a fresh document per iteration keeps the xref from growing across the run
+		@Setup(Level.Iteration)
+		public void open() {
+			this.pdfOut = new OutputDocument(NULL_OUTPUT);
+			this.font1 = this.pdfOut.addRasterFont(this.resources, 0);
+			this.operations = 0;
+		}
+		@TearDown(Level.Iteration)
+		public void close() {
+			this.pdfOut.close();
+		}
+
+		void count() {
+			if (++this.operations % OPERATIONS_PER_PAGE == 0) {
+				this.pdfOut.endPage();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Image {
+		@Param({"2550x200"})
+		String size;
+		@Param({"G4", "FLATE", "NONE"})
+		ImageEncoder.Compression compression;
+
+		int width;
+		int height;
+		byte[] data;
+		int serial;
+
+		@Setup
+		public void setup() {
+			String[] wh = this.size.split("x");
+			this.width = Integer.parseInt(wh[0]);
+			this.height = Integer.parseInt(wh[1]);
+			this.data = Fixtures.bitmap((this.width + 7) / 8 * this.height, this.width);
+		}
+
+		// every call a different image, the way EIM hands them over
+		byte[] next() {
+			byte[] copy = this.data.clone();
+			int n = ++this.serial;
+			copy[0] = (byte) n;
+			copy[1] = (byte) (n >> 8);
+			copy[2] = (byte) (n >> 16);
+			return copy;
+		}
+	}
+
+	// a font and all its glyphs, they are written on first use
+	@Benchmark
+	public int addRasterFont(Document doc) {
+		int font = doc.pdfOut.addRasterFont(doc.resources, 0);
+		doc.pdfOut.addText(doc.allGlyphs, 0, doc.allGlyphs.length, font, 2.5f, 72, 72, doc.black);
+		doc.count();
+		return font;
+	}
+
+	@Benchmark
+	public void addText(Document doc) {
+		int n = doc.operations;
+		doc.pdfOut.addText(BALANCE, 0, BALANCE.length, doc.font1, 2.5f, 72 + (n % 7) * 60, 72 + (n % 50) * 12, n % 10 == 0 ? doc.red : doc.black);
+		doc.count();
+	}
+
+	@Benchmark
+	public void addRawImage(Document doc, Image image) {
+		doc.pdfOut.setImageCompression(image.compression);
+		doc.pdfOut.addRawImage(image.next(), image.width, image.height, 36, 100);
+		doc.count();
+	}
+
+	@Benchmark
+	public void addRawImageRepeated(Document doc, Image image) {
+		doc.pdfOut.setImageCompression(image.compression);
+		doc.pdfOut.addRawImage(image.data, image.width, image.height, 36, 100);
+		doc.count();
+	}
+
+	@Benchmark
+	public void drawRule(Document doc) {
+		int n = doc.operations;
+		doc.pdfOut.drawRule(36, 72 + (n % 50) * 12, 576, 72 + (n % 50) * 12, 0.5f);
+		doc.count();
+	}
+}
@@ -0,0 +1,321 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mgz.afp.base.StructuredField;
+import com.mgz.afp.enums.SFTypeID;
+import com.mgz.afp.exceptions.AFPParserException;
+import com.mgz.afp.foca.*;
+import com.mgz.afp.ioca.*;
+import com.mgz.afp.modca.*;
+import com.mgz.afp.ptoca.*;
+
+/**
+ * parser side hot paths: structured field throughput, glyph extraction, bit inversion.
+ * set afpdf.bench.input to parse a real spool instead of the generated one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Spool {
+		@Param({"100"})
+		int pages;
+		@Param({"60"})
+		int lines;
+		@Param({"0.25"})
+		float images;
+
+		byte[] data;
+
+		@Setup
+		public void setup() throws IOException {
+			String input = System.getProperty("afpdf.bench.input");
+			if (input != null) {
+				this.data = Files.readAllBytes(new File(input).toPath());
+			} else {
+				SpoolGenerator generator = new SpoolGenerator();
+				generator.setPages(this.pages);
+				generator.setLinesPerPage(this.lines);
+				generator.setImagesPerPage(this.images);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				generator.write(out);
+				this.data = out.toByteArray();
+			}
+		}
+	}
+
+	// the spool's fields, read once, for the dispatch benchmarks
+	@State(Scope.Benchmark)
+	public static class Fields {
+		List<StructuredField> fields;
+
+		@Setup
+		public void setup(Spool spool) throws AFPParserException {
+			BaseParser reader = new BaseParser();
+			reader.setInputParser(new ByteArrayInputStream(spool.data));
+			this.fields = new ArrayList<>();
+			StructuredField sf;
+			while ((sf = reader.nextField()) != null) {
+				this.fields.add(sf);
+			}
+		}
+	}
+
+	/*
+	 * the dispatch BaseParser had before the handler table: every field runs through
+	 * every instanceof check. kept as the baseline for parse and dispatch, with the
+	 * same per field timing and counting as BaseParser.dispatch.
+	 */
+	static class InstanceofDispatchParser extends BaseParser {
+		@Override
+		protected void dispatch(StructuredField sf) {
+			SFTypeID typeId = sf.getStructuredFieldIntroducer().getSFTypeID();
+			if (typeId == null) {
+				return;
+			}
+			long started = System.nanoTime();
+			if (sf instanceof BMM_BeginMediumMap) {
+				handleBMM_BeginMediumMap((BMM_BeginMediumMap) sf);
+			}
+			if (sf instanceof MDD_MediumDescriptor) {
+				handleMDD_MediumDescriptor((MDD_MediumDescriptor) sf);
+			}
+			if (sf instanceof EMM_EndMediumMap) {
+				handleEMM_EndMediumMap((EMM_EndMediumMap) sf);
+			}
+			if (sf instanceof IMM_InvokeMediumMap) {
+				handleIMM_InvokeMediumMap((IMM_InvokeMediumMap) sf);
+			}
+			if (sf instanceof BCP_BeginCodePage) {
+				handleBCP_BeginCodePage((BCP_BeginCodePage) sf);
+			}
+			if (sf instanceof CPC_CodePageControl) {
+				handleCPC_CodePageControl((CPC_CodePageControl) sf);
+			}
+			if (sf instanceof CPD_CodePageDescriptor) {
+				handleCPD_CodePageDescriptor((CPD_CodePageDescriptor) sf);
+			}
+			if (sf instanceof CPI_CodePageIndex) {
+				handleCPI_CodePageIndex((CPI_CodePageIndex) sf);
+			}
+			if (sf instanceof ECP_EndCodePage) {
+				handleECP_EndCodePage((ECP_EndCodePage) sf);
+			}
+			if (sf instanceof BFN_BeginFont) {
+				handleBFN_BeginFont((BFN_BeginFont) sf);
+			}
+			if (sf instanceof EFN_EndFont) {
+				handleEFN_EndFont((EFN_EndFont) sf);
+			}
+			if (sf instanceof BNG_BeginNamedPageGroup) {
+				handleBNG_BeginNamedPageGroup((BNG_BeginNamedPageGroup) sf);
+			}
+			if (sf instanceof ENG_EndNamedPageGroup) {
+				handleENG_EndNamedPageGroup((ENG_EndNamedPageGroup) sf);
+			}
+			if (sf instanceof BPG_BeginPage) {
+				handleBPG_BeginPage((BPG_BeginPage) sf);
+			}
+			if (sf instanceof EPG_EndPage) {
+				handleEPG_EndPage((EPG_EndPage) sf);
+			}
+			if (sf instanceof FNC_FontControl) {
+				handleFNC_FontControl((FNC_FontControl) sf);
+			}
+			if (sf instanceof FND_FontDescriptor) {
+				handleFND_FontDescriptor((FND_FontDescriptor) sf);
+			}
+			if (sf instanceof FNI_FontIndex) {
+				handleFNI_FontIndex((FNI_FontIndex) sf);
+			}
+			if (sf instanceof FNM_FontPatternsMap) {
+				handleFNM_FontPatternsMap((FNM_FontPatternsMap) sf);
+			}
+			if (sf instanceof FNO_FontOrientation) {
+				handleFNO_FontOrientation((FNO_FontOrientation) sf);
+			}
+			if (sf instanceof FNP_FontPosition) {
+				handleFNP_FontPosition((FNP_FontPosition) sf);
+			}
+			if (sf instanceof FNG_FontPatterns) {
+				handleFNG_FontPatterns((FNG_FontPatterns) sf);
+			}
+			if (sf instanceof MCF_MapCodedFont_Format2) {
+				handleMCF_MapCodedFont_Format2((MCF_MapCodedFont_Format2) sf);
+			}
+			if (sf instanceof BIM_BeginImageObject) {
+				handleBIM_BeginImageObject((BIM_BeginImageObject) sf);
+			}
+			if (sf instanceof EIM_EndImageObject) {
+				handleEIM_EndImageObject((EIM_EndImageObject) sf);
+			}
+			if (sf instanceof IPD_ImagePictureData) {
+				handleIPD_ImagePictureData((IPD_ImagePictureData) sf);
+			}
+			if (sf instanceof IDD_ImageDataDescriptor) {
+				handleIDD_ImageDataDescriptor((IDD_ImageDataDescriptor) sf);
+			}
+			if (sf instanceof OBD_ObjectAreaDescriptor) {
+				handleOBD_ObjectAreaDescriptor((OBD_ObjectAreaDescriptor) sf);
+			}
+			if (sf instanceof OBP_ObjectAreaPosition) {
+				handleOBP_ObjectAreaPosition((OBP_ObjectAreaPosition) sf);
+			}
+			if (sf instanceof PGD_PageDescriptor) {
+				handlePGD_PageDescriptor((PGD_PageDescriptor) sf);
+			}
+			if (sf instanceof PGP_PagePosition_Format1) {
+				handlePGP_PagePosition_Format1((PGP_PagePosition_Format1) sf);
+			}
+			if (sf instanceof BPT_BeginPresentationTextObject) {
+				handleBPT_BeginPresentationTextObject((BPT_BeginPresentationTextObject) sf);
+			}
+			if (sf instanceof PTX_PresentationTextData) {
+				handlePTX_PresentationTextData((PTX_PresentationTextData) sf);
+			}
+			if (sf instanceof PTD_PresentationTextDataDescriptor_Format2) {
+				handlePTD_PresentationTextDataDescriptor_Format2((PTD_PresentationTextDataDescriptor_Format2) sf);
+			}
+			countField(typeId, started);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Font {
+		@Param({"200"})
+		int glyphs;
+		@Param({"30"})
+		int width;
+		@Param({"42"})
+		int height;
+
+		BaseParser parser;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			this.parser = new BaseParser();
+		}
+		// EFN consumes what FNI/FNM/FNG collected
+		@Setup(Level.Invocation)
+		public void patterns() {
+			this.parser.getResources().clear();
+			Fixtures.fontPatterns(this.parser, this.glyphs, this.width, this.height);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Raster {
+		@Param({"525", "1012500"})
+		int bytes;
+
+		byte[] data;
+
+		@Setup
+		public void setup() {
+			this.data = Fixtures.bitmap(this.bytes, this.bytes);
+		}
+	}
+
+	/*
+	 * parse and dispatch every structured field, decodes fonts but renders nothing
+	 */
+	@Benchmark
+	public long parse(Spool spool) throws AFPParserException {
+		BaseParser parser = new BaseParser();
+		parser.setDumpFonts(false);
+		parser.setInputParser(new ByteArrayInputStream(spool.data));
+		parser.parse();
+		return parser.parser.getCountReadByte();
+	}
+
+	// the same with the old instanceof chain
+	@Benchmark
+	public long parseInstanceofDispatch(Spool spool) throws AFPParserException {
+		BaseParser parser = new InstanceofDispatchParser();
+		parser.setDumpFonts(false);
+		parser.setInputParser(new ByteArrayInputStream(spool.data));
+		parser.parse();
+		return parser.parser.getCountReadByte();
+	}
+
+	/*
+	 * hand the already read fields to a new parser's handlers, dispatch without the reading
+	 */
+	@Benchmark
+	public BaseParser dispatch(Fields fields) {
+		return dispatchAll(new BaseParser(), fields.fields);
+	}
+
+	// the same with the old instanceof chain
+	@Benchmark
+	public BaseParser dispatchInstanceof(Fields fields) {
+		return dispatchAll(new InstanceofDispatchParser(), fields.fields);
+	}
+
+	static BaseParser dispatchAll(BaseParser parser, List<StructuredField> fields) {
+		// nothing is read, but the handlers use the parser configuration
+		parser.setInputParser(new ByteArrayInputStream(new byte[0]));
+		for (StructuredField sf : fields) {
+			parser.dispatch(sf);
+		}
+		return parser;
+	}
+
+	@Benchmark
+	public FontProperties endFont(Font font) {
+		font.parser.handleEFN_EndFont(null);
+		return font.parser.currentFont;
+	}
+
+	@Benchmark
+	public byte[] flipBits(Raster raster) {
+		return BaseParser.flipBits(raster.data);
+	}
+
+	// what EFN and EIM do now
+	@Benchmark
+	public byte[] invertInPlace(Raster raster) {
+		return BilevelRaster.invert(raster.data);
+	}
+}
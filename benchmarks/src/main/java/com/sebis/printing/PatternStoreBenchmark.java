@@ -0,0 +1,117 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FNG pattern data of a large double byte font, handed over in FNG sized chunks.
+ * the glyph cells don't divide the 64k segments, so reads cross segment boundaries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternStoreBenchmark {
+
+	@State(Scope.Thread)
+	public static class Patterns {
+		// a DBCS font has thousands of glyphs
+		@Param({"7000"})
+		int glyphs;
+		// 30x30 cells, 120 bytes each
+		@Param({"120"})
+		int cellSize;
+		// FNG payload, a structured field holds at most 32759 bytes
+		@Param({"4096", "32759"})
+		int chunk;
+		@Param({"false", "true"})
+		boolean direct;
+
+		byte[][] chunks;
+		PatternStore store;
+		byte[] cell;
+
+		@Setup
+		public void setup() {
+			byte[] data = Fixtures.bitmap(this.glyphs * this.cellSize, this.glyphs);
+			int count = (data.length + this.chunk - 1) / this.chunk;
+			this.chunks = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				int from = i * this.chunk;
+				this.chunks[i] = new byte[Math.min(this.chunk, data.length - from)];
+				System.arraycopy(data, from, this.chunks[i], 0, this.chunks[i].length);
+			}
+			this.store = new PatternStore(this.direct);
+			for (byte[] c : this.chunks) {
+				this.store.append(c);
+			}
+			this.cell = new byte[this.cellSize];
+		}
+	}
+
+	/*
+	 * FNG records of one font, segments are reused after clear() as from font to font
+	 */
+	@Benchmark
+	public long append(Patterns p) {
+		p.store.clear();
+		for (byte[] c : p.chunks) {
+			p.store.append(c);
+		}
+		return p.store.size();
+	}
+
+	// what FNG did before the store: grow one array, copying everything so far
+	@Benchmark
+	public long appendCopying(Patterns p) {
+		byte[] patterns = new byte[0];
+		for (byte[] c : p.chunks) {
+			byte[] buff = new byte[patterns.length + c.length];
+			System.arraycopy(patterns, 0, buff, 0, patterns.length);
+			System.arraycopy(c, 0, buff, patterns.length, c.length);
+			patterns = buff;
+		}
+		return patterns.length;
+	}
+
+	/*
+	 * every glyph cell, the way EFN cuts them out
+	 */
+	@Benchmark
+	public int readCells(Patterns p) {
+		int sum = 0;
+		for (int i = 0; i < p.glyphs; i++) {
+			p.store.read((long) i * p.cellSize, p.cell, 0, p.cellSize);
+			sum += p.cell[0];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,178 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * output stream that hands filled buffers to a writer thread.
+ * the producer only copies into a buffer, the file writes happen on the writer thread.
+ * at most depth buffers wait to be written, then the producer blocks.
+ */
+public class AsyncOutputStream extends OutputStream {
+
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	// marks the end of output
+	private static final byte[] END = new byte[0];
+
+	private final OutputStream out;
+	private final BlockingQueue<byte[]> queue;
+	private final BlockingQueue<byte[]> free;
+	private final Thread writer;
+	private volatile IOException error;
+
+	private byte[] buffer;
+	private int count = 0;
+	private boolean closed = false;
+
+	// writer stage, written by the writer thread and read after it ends
+	private volatile long writeBusyNanos = 0;
+	private volatile long writeWaitNanos = 0;
+
+	public AsyncOutputStream(OutputStream out, int depth) {
+		this.out = out;
+		this.queue = new ArrayBlockingQueue<byte[]>(depth);
+		// buffers are recycled, depth in the queue, one being written, one being filled
+		this.free = new ArrayBlockingQueue<byte[]>(depth + 2);
+		this.buffer = new byte[BUFFER_SIZE];
+		this.writer = new Thread(this::write, "afpdf-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	private void write() {
+		long busy = 0;
+		long wait = 0;
+		try {
+			while (true) {
+				long t0 = System.nanoTime();
+				byte[] b = this.queue.take();
+				long t1 = System.nanoTime();
+				wait += t1 - t0;
+				if (b == END) {
+					break;
+				}
+				if (this.error == null) {
+					try {
+						this.out.write(b);
+					} catch (IOException e) {
+						// reported to the producer on its next write or close
+						this.error = e;
+					}
+				}
+				if (b.length == BUFFER_SIZE) {
+					this.free.offer(b);
+				}
+				busy += System.nanoTime() - t1;
+			}
+		} catch (InterruptedException e) {
+			// closed without flushing
+		} finally {
+			this.writeBusyNanos = busy;
+			this.writeWaitNanos = wait;
+		}
+	}
+
+	private void hand(byte[] b) throws IOException {
+		try {
+			this.queue.put(b);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the writer", e);
+		}
+	}
+
+	/*
+	 * queue the current buffer, a partly filled one is queued as a trimmed copy
+	 */
+	private void handBuffer() throws IOException {
+		if (this.count == 0) {
+			return;
+		}
+		if (this.error != null) {
+			throw this.error;
+		}
+		if (this.count == BUFFER_SIZE) {
+			hand(this.buffer);
+			byte[] next = this.free.poll();
+			this.buffer = next != null ? next : new byte[BUFFER_SIZE];
+		} else {
+			byte[] part = new byte[this.count];
+			System.arraycopy(this.buffer, 0, part, 0, this.count);
+			hand(part);
+		}
+		this.count = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (this.count == BUFFER_SIZE) {
+			handBuffer();
+		}
+		this.buffer[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (this.count == BUFFER_SIZE) {
+				handBuffer();
+			}
+			int n = Math.min(len, BUFFER_SIZE - this.count);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * queued buffers are written in order, flush does not wait for them
+	 */
+	@Override
+	public void flush() throws IOException {
+		handBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			handBuffer();
+			hand(END);
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the writer", e);
+		} finally {
+			// no-op once the writer has ended, stops it when closing failed
+			this.writer.interrupt();
+			ConversionMetrics.getInstance().addWriteStage(this.writeBusyNanos, this.writeWaitNanos);
+			this.out.close();
+		}
+		if (this.error != null) {
+			throw this.error;
+		}
+	}
+}
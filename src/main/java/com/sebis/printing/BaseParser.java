@@ -16,18 +16,33 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
 package com.sebis.printing;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.mgz.afp.base.IRepeatingGroup;
 import com.mgz.afp.base.StructuredField;
+import com.mgz.afp.base.StructuredFieldBaseData;
+import com.mgz.afp.base.StructuredFieldIntroducer;
 import com.mgz.afp.enums.AFPUnitBase;
+import com.mgz.afp.enums.SFFlag;
+import com.mgz.afp.enums.SFTypeID;
 import com.mgz.afp.exceptions.AFPParserException;
 import com.mgz.afp.foca.*;
 import com.mgz.afp.foca.CPI_CodePageIndex.CPI_RepeatingGroup;
@@ -44,6 +59,7 @@ import com.mgz.afp.triplets.Triplet;
 import com.mgz.afp.triplets.Triplet.GlobalID_Use;
 import com.mgz.afp.modca.*;
 import com.mgz.afp.modca.MCF_MapCodedFont_Format2.MCF_RepeatingGroup;
+import com.mgz.util.UtilBinaryDecoding;
 
 /**
  * Base parser class. Maintains state of AFP stream.
@@ -54,15 +70,37 @@ public class BaseParser {
 	protected String inputFilename;
 	protected AFPParser parser;
 	protected AFPParserConfiguration config;
+	protected MappedInputStream mappedInput;
+	
+	// discards output, used to feed digests
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {}
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	};
+	
+	// input files at least this large are memory mapped
+	public static final long MAPPED_INPUT_THRESHOLD = 64L * 1024 * 1024;
 
 	Map<String, FNI_FontIndex.FNI_RepeatingGroup> fontIndexes = new HashMap<String,  FNI_FontIndex.FNI_RepeatingGroup>();
 	List<FNM_RepeatingGroup> fontPatternsMap = new ArrayList<FNM_RepeatingGroup>();
-	byte[] currentFontPatterns = new byte[0];
+	PatternStore currentFontPatterns = new PatternStore();
 	
 	String currentCodePage;
-	Map<String, CodePage> codePages = new HashMap<String, CodePage>();
 	FontProperties currentFont;
-	List<FontProperties> fonts = new ArrayList<FontProperties>();
+	// decoded code pages and fonts, within the resource budget
+	ResourceCache resources = new ResourceCache(new ResourceLoader());
+	// input offset of the BCP or BFN being decoded
+	long resourceStart;
+	
+	// fonts and code pages not included in the print file, null for none
+	ResourceLibrary resourceLibrary;
+	
+	// decoded fonts from earlier runs, keyed by name and digest of the font fields
+	FontCache fontCache;
+	String currentFontName;
+	MessageDigest fontDigest;
 	
 	Medium currentMedium;
 	Map<String, Medium> media = new HashMap<String,Medium>();
@@ -72,6 +110,7 @@ public class BaseParser {
 	protected int pageyOffset;
 	
 	boolean fontsMapped = false; //only match glyphs to code points once, not on every page.
+	boolean dumpFonts = false; // write decoded fonts to /tmp when mapped, afpdf.dumpFonts
 	int fontCoded = 0; // font being coded, index
 	
 	// current presentation text settings
@@ -79,16 +118,87 @@ public class BaseParser {
 	int textLeft = 0;
 	String textData = "";
 	
-	public BaseParser() {}
+	// structured field type id to handler
+	private final Map<SFTypeID, RegisteredHandler<?>> handlers = new EnumMap<SFTypeID, RegisteredHandler<?>>(SFTypeID.class);
+	
+	// counted per parser, added to the shared metrics every METRICS_BATCH fields
+	static final int METRICS_BATCH = 4096;
+	protected final ConversionMetrics metrics = ConversionMetrics.getInstance();
+	private final long[] sfCounts = new long[ConversionMetrics.TYPES.length];
+	private final long[] sfNanos = new long[ConversionMetrics.TYPES.length];
+	private int unreportedFields = 0;
+	private long parseNanos = 0;
+	private long bytesRead = 0;
+	private long reportedBytes = 0;
+	
+	// fields read ahead on a reader thread when > 0, see ParsePipeline
+	int pipelineDepth = 0;
+	// image object the field being handled belongs to
+	private ImageObject currentImageObject;
+	
+	// pages to handle (from 0), null for all. the others are skipped, see nextField()
+	BitSet pageSelection;
+	private int pageNumber = 0;
+	private boolean skipping = false;
+	// an MCF was handed to the handlers, they map fonts from the first one. nextField()
+	// state like skipping, it runs on the pipeline's reader thread and can't look at fontsMapped
+	private boolean mcfRead = false;
+	
+	public BaseParser() {
+		this.registerHandlers();
+	}
 	public BaseParser(String inputFilename) throws IOException {
+		this();
 		this.setInputParser(inputFilename);
 	}
+	/*
+	 * regular files of MAPPED_INPUT_THRESHOLD bytes or more are memory mapped,
+	 * anything else (pipes, small files) is streamed
+	 */
 	public void setInputParser(String inputFilename) throws IOException {
+		File file = new File(inputFilename);
+		if (file.isFile() && file.length() >= MAPPED_INPUT_THRESHOLD) {
+			this.setInputParser(new MappedInputStream(file));
+		} else {
+			this.setInputParser(new FileInputStream(file));
+		}
+		this.inputFilename = inputFilename;
+		if (file.isFile()) {
+			this.config.setAFPFile(file);
+		}
+	}
+	public void setInputParser(InputStream input) {
 		this.config = new AFPParserConfiguration();
-		this.config.setInputStream(new FileInputStream(inputFilename));
+		if (input instanceof MappedInputStream) {
+			this.mappedInput = (MappedInputStream) input;
+			// already in memory, don't let the parser wrap it in a buffer
+			this.config.setBufferSize(0);
+		} else {
+			this.mappedInput = null;
+			input = new SkippingInputStream(input, this.config.getBufferSize());
+		}
+		this.config.setInputStream(input);
 		this.parser = new AFPParser(config);
 	}
 	
+	/*
+	 * payload of a structured field (without padding) as a view of the mapped input.
+	 * null when the input is streamed.
+	 */
+	protected ByteBuffer getMappedPayload(StructuredField sf) {
+		if (this.mappedInput == null) {
+			return null;
+		}
+		StructuredFieldIntroducer sfi = sf.getStructuredFieldIntroducer();
+		int introducerLength = sfi.getLengthOfStructuredFieldIntroducerIncludingExtension();
+		int payloadLength = sfi.getSFLength() - introducerLength;
+		if (sf.getPadding() != null) {
+			payloadLength -= sf.getPadding().length;
+		}
+		// file offset points at the 0x5A carriage control, the length field follows it
+		return this.mappedInput.slice(sfi.getFileOffset() + 1 + introducerLength, payloadLength);
+	}
+	
 	public void close() throws IOException {
 		this.config.getInputStream().close();
 	}
@@ -105,13 +215,28 @@ public class BaseParser {
 		media.put(currentMedium.getName(), currentMedium);
 	}
 	protected void handleIMM_InvokeMediumMap(IMM_InvokeMediumMap sf) {
-		Medium m = this.media.get(sf.getName());
+		this.invokeMedium(sf.getName());
+	}
+	public void invokeMedium(String name) {
+		Medium m = this.media.get(name);
 		this.pagexOffset = m.getxOrigin();
 		this.pageyOffset = m.getyOrigin();
 	}
+	
+	/*
+	 * start from resources another parser has already decoded.
+	 * fonts are copied, mapping them to a code page changes their glyphs.
+	 */
+	public void shareResources(BaseParser from) {
+		this.resources.shareFrom(from.resources);
+		this.media.putAll(from.media);
+		this.pagexOffset = from.pagexOffset;
+		this.pageyOffset = from.pageyOffset;
+	}
 	protected void handleBCP_BeginCodePage(BCP_BeginCodePage sf) {
 		this.currentCodePage = sf.getName();
-		this.codePages.put(sf.getName(), new CodePage(sf.getName()));
+		this.resourceStart = sf.getStructuredFieldIntroducer().getFileOffset();
+		this.resources.addCodePage(new CodePage(sf.getName()), this.mappedInput, this.resourceStart);
 	}
 	protected void handleCPC_CodePageControl(CPC_CodePageControl sf) {}
 	protected void handleCPD_CodePageDescriptor(CPD_CodePageDescriptor sf) {
@@ -119,24 +244,39 @@ public class BaseParser {
 		//System.out.println(sf.getCodePageGID());
 	}
 	protected void handleCPI_CodePageIndex(CPI_CodePageIndex sf) {
+		CodePage codePage = this.resources.getCodePage(currentCodePage);
 		for (CPI_RepeatingGroup g : sf.getRepeatingGroups()) {
-			this.codePages.get(currentCodePage).addCodePoint(g.getGraphicCharacterGID(), g.getCodePoint());
+			codePage.addCodePoint(g.getGraphicCharacterGID(), g.getCodePoint());
 		}
 	}
 	protected void handleECP_EndCodePage(ECP_EndCodePage sf) {
+		this.resources.getCodePage(currentCodePage).compile(config.getAfpCharSet());
+		this.resources.endCodePage(currentCodePage, endOffset(sf));
 		//System.out.println(currentCodePage);
 		//System.out.println(codePages.get(currentCodePage).getCodePoints());
 	}
 	protected void handleBFN_BeginFont(BFN_BeginFont sf) {
 		this.fontIndexes.clear();
 		this.fontPatternsMap.clear();
-		this.currentFontPatterns = new byte[0];
+		this.currentFontPatterns.clear();
 		this.currentFont = new FontProperties();
+		this.currentFontName = sf.getName();
+		this.resourceStart = sf.getStructuredFieldIntroducer().getFileOffset();
+		if (this.fontCache != null) {
+			try {
+				this.fontDigest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				this.fontDigest = null;
+			}
+		}
 	}
+	protected void handleBNG_BeginNamedPageGroup(BNG_BeginNamedPageGroup sf) {}
+	protected void handleENG_EndNamedPageGroup(ENG_EndNamedPageGroup sf) {}
 	protected void handleBPG_BeginPage(BPG_BeginPage sf) {}
 	protected void handleEPG_EndPage(EPG_EndPage sf) {}
 		
 	protected void handleFNC_FontControl(FNC_FontControl sf) {
+		digestFontField(sf);
 		if (!sf.getPatternTechnologyIdentifier().equals(PatternTechnologyIdentifier.LaserMatrixNBitWide)) {
 			System.err.println("Only LaserMatrixNBitWide fonts supported.");
 		}
@@ -158,6 +298,7 @@ public class BaseParser {
 		this.currentFont.setMaxCharacterWidth(sf.getMaxCharacterBoxWidth());
 	}
 	protected void handleFND_FontDescriptor(FND_FontDescriptor sf) {
+		digestFontField(sf);
 		this.currentFont.setNominalSize(sf.getNominalVerticalSize()/10);
 		//System.out.println("VER:" + sf.getNominalVerticalSize() + " " + sf.getMaxVerticalSize());
 	}
@@ -170,12 +311,14 @@ public class BaseParser {
 		}*/
 	}
 	protected void handleFNP_FontPosition(FNP_FontPosition sf) {
+		digestFontField(sf);
 		FNP_RepeatingGroup g = sf.getRepeatingGroups().get(0);
 		this.currentFont.setMaxAscender(g.getMaxAscenderHeight());
 		this.currentFont.setMaxDescender(g.getMaxDescenderDepth());
 	}
 	
 	protected void handleFNI_FontIndex(FNI_FontIndex sf) {
+		digestFontField(sf);
 		//  only get the first (0 degrees rotation)
 		if (this.fontIndexes.size() == 0) {
 			for (FNI_FontIndex.FNI_RepeatingGroup g : sf.getRepeatingGroups()) {
@@ -184,6 +327,7 @@ public class BaseParser {
 		}
 	}
 	protected void handleFNM_FontPatternsMap(FNM_FontPatternsMap sf) {
+		digestFontField(sf);
 		for (FNM_RepeatingGroup g : sf.getRepeatingGroups()) {
 			this.fontPatternsMap.add(g);
 			//System.out.println(g.getPatternDataOffset());
@@ -192,19 +336,21 @@ public class BaseParser {
 		}
 	}
 	protected void handleFNG_FontPatterns(FNG_FontPatterns sf) {
-		byte[] buff = new byte[ currentFontPatterns.length + sf.getData().length ];
-		System.arraycopy(currentFontPatterns, 0, buff, 0, currentFontPatterns.length);
-		System.arraycopy(sf.getData(), 0, buff, currentFontPatterns.length, sf.getData().length);
-		this.currentFontPatterns = buff;
+		ByteBuffer mapped = getMappedPayload(sf);
+		if (mapped == null) {
+			mapped = ByteBuffer.wrap(sf.getData());
+		}
+		digestFontData(mapped);
+		this.currentFontPatterns.append(mapped);
 	}
 	protected void handleBIM_BeginImageObject(BIM_BeginImageObject sf) {}
 	protected void handleEIM_EndImageObject(EIM_EndImageObject sf) {
-		//this.config.getCurrentImageObject();
+		//this.currentImageObject();
 	}
 	protected void handleOBP_ObjectAreaPosition(OBP_ObjectAreaPosition sf) {
 		OBP_ObjectAreaPosition.OBP_RepeatingGroup g = sf.getRepeatingGroup();
-		if (this.config.getCurrentImageObject() != null) {
-			this.config.getCurrentImageObject().setOffset(g.getxOrigin(),g.getyOrigin());
+		if (this.currentImageObject() != null) {
+			this.currentImageObject().setOffset(g.getxOrigin(),g.getyOrigin());
 		}
 	}
 	protected void handleOBD_ObjectAreaDescriptor(OBD_ObjectAreaDescriptor sf) {
@@ -217,8 +363,8 @@ public class BaseParser {
 		for (IDD_SelfDefiningField g : sf.getSelfDefiningFields()) {
 			if (g instanceof SetBilevelImageColor) {
 				SetBilevelImageColor bic = (SetBilevelImageColor) g;
-				if (this.config.getCurrentImageObject() != null) {
-					this.config.getCurrentImageObject().setBilevelColor(bic.getColor());
+				if (this.currentImageObject() != null) {
+					this.currentImageObject().setBilevelColor(bic.getColor());
 				}
 			}
 		}
@@ -239,6 +385,20 @@ public class BaseParser {
 	}
 
 	protected void handleEFN_EndFont(EFN_EndFont sf) {
+		
+		// decoded by an earlier run?
+		String cacheKey = null;
+		if (this.fontDigest != null) {
+			cacheKey = FontCache.key(this.currentFontName, this.fontDigest.digest());
+			this.fontDigest = null;
+			FontProperties cached = this.fontCache.load(cacheKey);
+			if (cached != null) {
+				this.currentFont = cached;
+				this.resources.addFont(cached, this.mappedInput, this.resourceStart, endOffset(sf));
+				return;
+			}
+		}
+		
 		// turn afp data into list of glyph properties
 		//System.out.println(this.currentCodePage);
 		for (String gcgid: fontIndexes.keySet()) {
@@ -258,9 +418,9 @@ public class BaseParser {
 					
 			// parse out the relevant pattern
 			byte[] buf = new byte[cellSize];
-			System.arraycopy(currentFontPatterns, (int)pm.getPatternDataOffset(), buf, 0, cellSize);
+			currentFontPatterns.read(pm.getPatternDataOffset(), buf, 0, cellSize);
 			
-			GlyphProperties glyph = new GlyphProperties(gcgid, flipBits(buf), cellWidth, cellHeight);
+			GlyphProperties glyph = new GlyphProperties(gcgid, BilevelRaster.invert(buf), cellWidth, cellHeight);
 			glyph.setBaselineShift(metrics.getBaselineOffset());
 			glyph.setAdvance(metrics.getCharacterIncrement());
 			glyph.setAspace(metrics.getASpace());
@@ -273,8 +433,47 @@ public class BaseParser {
 			this.currentFont.addGlyph(gcgid, glyph);
 		}
 		
-		this.fonts.add(this.currentFont);
+		this.resources.addFont(this.currentFont, this.mappedInput, this.resourceStart, endOffset(sf));
 		
+		if (cacheKey != null) {
+			this.fontCache.store(cacheKey, this.currentFont);
+		}
+	}
+	
+	// input offset just past a structured field, -1 (can't be read again) without an introducer
+	private static long endOffset(StructuredField sf) {
+		StructuredFieldIntroducer sfi = sf != null ? sf.getStructuredFieldIntroducer() : null;
+		if (sfi == null) {
+			return -1;
+		}
+		return sfi.getFileOffset() + 1 + sfi.getSFLength();
+	}
+	
+	/*
+	 * add a font structured field to the font cache key digest. the field is written
+	 * out again for mapped input too, so both paths give the same key for a font.
+	 * only for the small descriptive fields, FNG data goes to digestFontData().
+	 */
+	private void digestFontField(StructuredField sf) {
+		if (this.fontDigest == null) {
+			return;
+		}
+		try {
+			sf.writeAFP(new DigestOutputStream(NULL_OUTPUT, this.fontDigest), this.config);
+		} catch (IOException e) {
+			// can't key this font, don't cache it
+			this.fontDigest = null;
+		}
+	}
+	
+	/*
+	 * add pattern data to the font cache key digest as it was read, the mapped
+	 * payload or the bytes the streamed field holds
+	 */
+	private void digestFontData(ByteBuffer data) {
+		if (this.fontDigest != null) {
+			this.fontDigest.update(data.duplicate());
+		}
 	}
 
 	protected void handleMCF_MapCodedFont_Format2(MCF_MapCodedFont_Format2 sf) {
@@ -288,190 +487,433 @@ public class BaseParser {
 		// look for code page name references, assign to fonts
 		for (IRepeatingGroup g : sf.getRepeatingGroups()) {
 			MCF_RepeatingGroup mcfg = (MCF_RepeatingGroup) g;
+			String codePageName = null;
+			String charsetName = null;
 
 			for (Triplet t : mcfg.getTriplets()) {
 				if (t instanceof Triplet.FullyQualifiedName) {
 					if (((Triplet.FullyQualifiedName) t).getType() == GlobalID_Use.CodePageNameReference) {
-						String codePageName = ((Triplet.FullyQualifiedName) t).getNameAsString();
-
+						codePageName = ((Triplet.FullyQualifiedName) t).getNameAsString();
 						//System.out.println(codePageName);
-
-						this.codeFonts(fontCoded, codePageName);
-						fontCoded += 1;
 					}
 					if (((Triplet.FullyQualifiedName) t).getType() == GlobalID_Use.FontCharacterSetNameReference) {
-
-						String charsetName = ((Triplet.FullyQualifiedName) t).getNameAsString();
+						charsetName = ((Triplet.FullyQualifiedName) t).getNameAsString();
 						//System.out.println(charsetName);
 					}
 
 				}
 			}
+			if (codePageName == null) {
+				continue;
+			}
+			// more fonts mapped than included, the rest come from the library
+			if (fontCoded >= this.resources.getFontCount() && !addLibraryFont(charsetName)) {
+				// fonts are numbered by position, the ones after it can't be placed either
+				System.err.println("Font " + charsetName + " not found.");
+				break;
+			}
+			this.codeFonts(fontCoded, codePageName);
+			fontCoded += 1;
+		}
+
+		if (this.dumpFonts) {
+			try {
+				dumpFonts();
+			} catch (FileNotFoundException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 
+	}
+	
+	/*
+	 * decode a font character set from the resource library and add it after the included fonts
+	 */
+	private boolean addLibraryFont(String name) {
+		ResourceLibrary.Resource r = this.resourceLibrary != null ? this.resourceLibrary.findFont(name) : null;
+		if (r == null) {
+			return false;
+		}
 		try {
-			dumpFonts();
-		} catch (FileNotFoundException e) {
+			FontProperties f = this.resourceLibrary.getFont(r).copy();
+			this.resources.addFont(f, this.resourceLibrary.getInput(r), r.getStart(), r.getEnd());
+			return true;
+		} catch (AFPParserException e) {
+			System.err.println("Can not decode font " + name + " from " + r.getFile());
 			e.printStackTrace();
-		} catch (IOException e) {
+			return false;
+		}
+	}
+	/*
+	 * add a code page from the resource library, shared as decoded. returns the name
+	 * it was added under, null when not in the library.
+	 */
+	private String addLibraryCodePage(String name) {
+		ResourceLibrary.Resource r = this.resourceLibrary != null ? this.resourceLibrary.findCodePage(name) : null;
+		if (r == null) {
+			return null;
+		}
+		try {
+			CodePage codePage = this.resourceLibrary.getCodePage(r);
+			this.resources.addCodePage(codePage, this.resourceLibrary.getInput(r), r.getStart());
+			this.resources.endCodePage(codePage.getName(), r.getEnd());
+			return codePage.getName();
+		} catch (AFPParserException e) {
+			System.err.println("Can not decode code page " + name + " from " + r.getFile());
 			e.printStackTrace();
+			return null;
 		}
-
 	}
 	
 	/*
 	 * assign code points to font data
 	 */
 	private void codeFonts(int fontIdx, String codePageName) {
-		
-		FontProperties f = fonts.get(fontIdx);
-		
-		//System.out.println("font-" + fontIdx + " codepage " + codePageName );
+		this.resources.setFontCodePage(fontIdx, codeFont(this.resources.getFont(fontIdx), codePageName));
+	}
+	/*
+	 * returns the name of the code page used
+	 */
+	private String codeFont(FontProperties f, String codePageName) {
 		
 		// Use default? codePage when not found
-		if (!codePages.containsKey(codePageName)) {
-			codePageName = "T1D0BASE";
+		if (!this.resources.hasCodePage(codePageName)) {
+			String library = addLibraryCodePage(codePageName);
+			codePageName = library != null ? library : "T1D0BASE";
 		}
-
+		CodePage codePage = this.resources.getCodePage(codePageName);
+		if (codePage.getTranslation() == null) {
+			// code page without ECP
+			codePage.compile(config.getAfpCharSet());
+		}
+		TranslationTable translation = codePage.getTranslation();
 		
-		for (String gcgid : f.glyphs.keySet()) {
-			
-			//System.out.println(codePageName);
-			//System.out.println(codePages.get(codePageName));
-			if (codePages.get(codePageName).getCodePoint(gcgid) == null) {
-				//System.out.println(gcgid + " not found in codepage " + codePageName);
+		CodedFont coded = CodedFont.compile(f, codePage);
+		f.setCodePageName(codePageName);
+		f.setCodedFont(coded);
+		
+		for (int cp = 0; cp < 0x10000; cp++) {
+			GlyphProperties g = coded.getGlyph(cp);
+			if (g == null) {
+				// skip unused lead bytes
+				if (coded.glyphs[cp >> 8] == null) {
+					cp |= 0xFF;
+				}
 				continue;
 			}
-
-			// convert from ebcdic to ascii
-			String c = new String(new byte[] {codePages.get(codePageName).getCodePoint(gcgid).byteValue()}, config.getAfpCharSet());
-			
-			f.glyphs.get(gcgid).setCodePoint(c.charAt(0));
-			f.glyphs.get(gcgid).setCodePointEBCDIC(codePages.get(codePageName).getCodePoint(gcgid));
 			
+			g.setCodePoint(translation.translate(cp));
+			g.setCodePointEBCDIC(cp);
 		}
-
-		//setCodePoint(c.charAt(0));
-		//glyph.setCodePointEBCDIC(currentCodePage.get(gcgid));
-		//System.out.println(c.charAt(0) + " " + metrics.getBaselineOffset() + " " + metrics.getASpace() + " " + metrics.getBSpace() + " " + metrics.getCSpace());
-	
+		return codePageName;
 	}
 
 
 	public void parse () throws AFPParserException {
 		
+		if (this.pipelineDepth > 0) {
+			parsePipelined();
+			return;
+		}
+		
 		StructuredField sf = null;
 		
 		do {
 			
-			sf = this.parser.parseNextSF();
+			long started = System.nanoTime();
+			sf = this.nextField();
+			this.parseNanos += System.nanoTime() - started;
 			
 			if (sf != null) {
 
 				//System.out.println(sf.toString());
 
-				if (sf instanceof BMM_BeginMediumMap) {
-					handleBMM_BeginMediumMap((BMM_BeginMediumMap) sf);
-				}
-				if (sf instanceof MDD_MediumDescriptor) {
-					handleMDD_MediumDescriptor((MDD_MediumDescriptor) sf);
-				}
-				if (sf instanceof EMM_EndMediumMap) {
-					handleEMM_EndMediumMap((EMM_EndMediumMap) sf);
-				}
-				if (sf instanceof IMM_InvokeMediumMap) {
-					handleIMM_InvokeMediumMap((IMM_InvokeMediumMap) sf);
-				}
-				if (sf instanceof BCP_BeginCodePage) {
-					handleBCP_BeginCodePage((BCP_BeginCodePage) sf);
-				}
-				if (sf instanceof CPC_CodePageControl) {
-					handleCPC_CodePageControl((CPC_CodePageControl) sf);
-				}
-				if (sf instanceof CPD_CodePageDescriptor) {
-					handleCPD_CodePageDescriptor((CPD_CodePageDescriptor) sf);
-				}
-				if (sf instanceof CPI_CodePageIndex) {
-					handleCPI_CodePageIndex((CPI_CodePageIndex) sf);
-				}
-				if (sf instanceof ECP_EndCodePage) {
-					handleECP_EndCodePage((ECP_EndCodePage) sf);
-				}
-				if (sf instanceof BFN_BeginFont) {
-					handleBFN_BeginFont((BFN_BeginFont) sf);
-				}
-				if (sf instanceof EFN_EndFont) {
-					handleEFN_EndFont((EFN_EndFont) sf);
-				}
-				if (sf instanceof BPG_BeginPage) {
-					handleBPG_BeginPage((BPG_BeginPage) sf);
-				}
-				if (sf instanceof EPG_EndPage) {
-					handleEPG_EndPage((EPG_EndPage) sf);
-				}
-				if (sf instanceof FNC_FontControl) {
-					handleFNC_FontControl((FNC_FontControl) sf);
-				}
-				if (sf instanceof FND_FontDescriptor) {
-					handleFND_FontDescriptor((FND_FontDescriptor) sf);
-				}
-				if (sf instanceof FNI_FontIndex) {
-					handleFNI_FontIndex((FNI_FontIndex) sf);
-					
-				}
-				if (sf instanceof FNM_FontPatternsMap) {
-					handleFNM_FontPatternsMap((FNM_FontPatternsMap) sf);
-				}
-				if (sf instanceof FNO_FontOrientation) {
-					handleFNO_FontOrientation((FNO_FontOrientation) sf);
-				}
-				if (sf instanceof FNP_FontPosition) {
-					handleFNP_FontPosition((FNP_FontPosition) sf);
-				}
-				if (sf instanceof FNG_FontPatterns) {
-					handleFNG_FontPatterns((FNG_FontPatterns) sf);
-				}
-				if (sf instanceof MCF_MapCodedFont_Format2) {
-					handleMCF_MapCodedFont_Format2((MCF_MapCodedFont_Format2) sf);
-				}
-				if (sf instanceof BIM_BeginImageObject) {
-					handleBIM_BeginImageObject((BIM_BeginImageObject) sf);
-				}
-				if (sf instanceof EIM_EndImageObject) {
-					handleEIM_EndImageObject((EIM_EndImageObject) sf);
-				}
-				if (sf instanceof IPD_ImagePictureData) {
-					handleIPD_ImagePictureData((IPD_ImagePictureData) sf);
-				}
-				if (sf instanceof IDD_ImageDataDescriptor) {
-					handleIDD_ImageDataDescriptor((IDD_ImageDataDescriptor) sf);
-				}
-				if (sf instanceof OBD_ObjectAreaDescriptor) {
-					handleOBD_ObjectAreaDescriptor((OBD_ObjectAreaDescriptor) sf);
-				}
-				if (sf instanceof OBP_ObjectAreaPosition) {
-					handleOBP_ObjectAreaPosition((OBP_ObjectAreaPosition) sf);
-				}
-				if (sf instanceof PGD_PageDescriptor) {
-					handlePGD_PageDescriptor((PGD_PageDescriptor) sf);
-				}
-				if (sf instanceof PGP_PagePosition_Format1) {
-					handlePGP_PagePosition_Format1((PGP_PagePosition_Format1) sf);
-				}
-				if (sf instanceof BPT_BeginPresentationTextObject) {
-					handleBPT_BeginPresentationTextObject((BPT_BeginPresentationTextObject) sf);
-				}
-				if (sf instanceof PTX_PresentationTextData) {
-					handlePTX_PresentationTextData((PTX_PresentationTextData) sf);
-				}
-				if (sf instanceof PTD_PresentationTextDataDescriptor_Format2) {
-					handlePTD_PresentationTextDataDescriptor_Format2((PTD_PresentationTextDataDescriptor_Format2) sf);
-				}
+				this.bytesRead = this.parser.getCountReadByte();
+				this.currentImageObject = this.config.getCurrentImageObject();
+				dispatch(sf);
 			}
 			
 		} while (sf != null);
 		
+		reportMetrics();
+	}
+	
+	/*
+	 * next field to handle.
+	 * pages outside the page selection are read shallow, only their introducers are
+	 * decoded and the payloads are skipped. they are not handed to the handlers,
+	 * except the font mapping, which is decoded in full.
+	 */
+	protected StructuredField nextField() throws AFPParserException {
+		while (true) {
+			StructuredField sf = this.parser.parseNextSF();
+			if (sf == null || this.pageSelection == null) {
+				return sf;
+			}
+			SFTypeID type = sf.getStructuredFieldIntroducer().getSFTypeID();
+			if (this.skipping) {
+				if (type == SFTypeID.EPG_EndPage) {
+					this.skipping = false;
+					this.config.setBuildShallow(false);
+					this.config.setParseToStructuredFieldsBaseData(false);
+					this.metrics.addSkippedPage();
+				} else if (type == SFTypeID.MCF_MapCodedFont_Format2 && !this.mcfRead) {
+					// fonts are mapped once, from the first MCF even when its page is skipped
+					StructuredField mcf = AFPParser.createSFInstance(sf.getStructuredFieldIntroducer());
+					if (sf instanceof StructuredFieldBaseData && ((StructuredFieldBaseData) sf).getData() != null) {
+						mcf.setPadding(sf.getPadding());
+						mcf.decodeAFP(((StructuredFieldBaseData) sf).getData(), 0, -1, this.config);
+					} else {
+						reload(mcf);
+					}
+					this.mcfRead = true;
+					return mcf;
+				}
+				continue;
+			}
+			if (type == SFTypeID.BPG_BeginPage && !this.pageSelection.get(this.pageNumber++)) {
+				// introducers only, not even the field classes are looked up. input that
+				// can't be read again keeps payloads as raw data until fonts are mapped.
+				this.skipping = true;
+				this.config.setBuildShallow(this.mcfRead || this.mappedInput != null || this.config.getAFPFile() != null);
+				this.config.setParseToStructuredFieldsBaseData(true);
+				continue;
+			}
+			if (type == SFTypeID.MCF_MapCodedFont_Format2) {
+				this.mcfRead = true;
+			}
+			return sf;
+		}
+	}
+	
+	/*
+	 * decode a field that was read shallow
+	 */
+	protected void reload(StructuredField sf) throws AFPParserException {
+		if (this.mappedInput == null) {
+			// reads the field again from the input file
+			AFPParser.reload(sf);
+			return;
+		}
+		StructuredFieldIntroducer sfi = sf.getStructuredFieldIntroducer();
+		int introducerLength = sfi.getLengthOfStructuredFieldIntroducerIncludingExtension();
+		byte[] data = new byte[sfi.getSFLength() - introducerLength];
+		this.mappedInput.slice(sfi.getFileOffset() + 1 + introducerLength, data.length).get(data);
 		
+		// padding as AFPParser handles it, length in the last byte or the two before a 0
+		if (sfi.isFlagSet(SFFlag.isPadded) && data.length > 0) {
+			int padding = data[data.length - 1];
+			if (padding == 0) {
+				padding = UtilBinaryDecoding.parseInt(data, data.length - 3, 2);
+			}
+			sf.setPadding(Arrays.copyOfRange(data, data.length - padding, data.length));
+			data = Arrays.copyOf(data, data.length - padding);
+		}
+		sf.decodeAFP(data, 0, -1, this.config);
+	}
+	
+	/*
+	 * decode on a reader thread, handle on this one, in file order
+	 */
+	private void parsePipelined() throws AFPParserException {
+		ParsePipeline pipeline = new ParsePipeline(this, this.pipelineDepth);
+		pipeline.start();
+		try {
+			ParsePipeline.Entry e;
+			while ((e = pipeline.take()) != null) {
+				this.parseNanos += e.parseNanos;
+				this.bytesRead = e.bytesRead;
+				this.currentImageObject = e.image;
+				dispatch(e.sf);
+			}
+		} finally {
+			pipeline.close();
+		}
+		reportMetrics();
+	}
+	
+	/*
+	 * the image object being assembled when the current field was read.
+	 * the parser's configuration may already be ahead when fields are read on another thread.
+	 */
+	protected ImageObject currentImageObject() {
+		return this.currentImageObject;
+	}
+	
+	/*
+	 * hand a structured field to the handler registered for its type id
+	 */
+	protected void dispatch(StructuredField sf) {
+		SFTypeID typeId = sf.getStructuredFieldIntroducer().getSFTypeID();
+		if (typeId == null) {
+			return;
+		}
+		long started = System.nanoTime();
+		RegisteredHandler<?> h = this.handlers.get(typeId);
+		if (h != null) {
+			h.dispatch(sf);
+		}
+		
+		countField(typeId, started);
+	}
+	
+	/*
+	 * count a handled field and the time since started (System.nanoTime() before its handler ran)
+	 */
+	protected void countField(SFTypeID typeId, long started) {
+		int i = typeId.ordinal();
+		this.sfCounts[i] += 1;
+		this.sfNanos[i] += System.nanoTime() - started;
+		if (++this.unreportedFields == METRICS_BATCH) {
+			reportMetrics();
+		}
+	}
+	
+	/*
+	 * add local counts to the process wide metrics
+	 */
+	protected void reportMetrics() {
+		this.metrics.addStructuredFields(this.sfCounts, this.sfNanos);
+		Arrays.fill(this.sfCounts, 0);
+		Arrays.fill(this.sfNanos, 0);
+		this.unreportedFields = 0;
+		
+		this.metrics.addParse(this.parseNanos, this.bytesRead - this.reportedBytes);
+		this.parseNanos = 0;
+		this.reportedBytes = this.bytesRead;
+	}
+	
+	/*
+	 * register (or replace) the handler for a structured field type.
+	 * subclasses can call this from registerHandlers() to pick up types BaseParser ignores.
+	 */
+	protected <T extends StructuredField> void registerHandler(SFTypeID typeId, Class<T> type, StructuredFieldHandler<? super T> handler) {
+		this.handlers.put(typeId, new RegisteredHandler<T>(type, handler));
+	}
+	
+	/*
+	 * default handlers, these call the overridable handle* hooks
+	 */
+	protected void registerHandlers() {
+		registerHandler(SFTypeID.BMM_BeginMediumMap, BMM_BeginMediumMap.class, this::handleBMM_BeginMediumMap);
+		registerHandler(SFTypeID.MDD_MediumDescriptor, MDD_MediumDescriptor.class, this::handleMDD_MediumDescriptor);
+		registerHandler(SFTypeID.EMM_EndMediumMap, EMM_EndMediumMap.class, this::handleEMM_EndMediumMap);
+		registerHandler(SFTypeID.IMM_InvokeMediumMap, IMM_InvokeMediumMap.class, this::handleIMM_InvokeMediumMap);
+		registerHandler(SFTypeID.BCP_BeginCodePage, BCP_BeginCodePage.class, this::handleBCP_BeginCodePage);
+		registerHandler(SFTypeID.CPC_CodePageControl, CPC_CodePageControl.class, this::handleCPC_CodePageControl);
+		registerHandler(SFTypeID.CPD_CodePageDescriptor, CPD_CodePageDescriptor.class, this::handleCPD_CodePageDescriptor);
+		registerHandler(SFTypeID.CPI_CodePageIndex, CPI_CodePageIndex.class, this::handleCPI_CodePageIndex);
+		registerHandler(SFTypeID.ECP_EndCodePage, ECP_EndCodePage.class, this::handleECP_EndCodePage);
+		registerHandler(SFTypeID.BFN_BeginFont, BFN_BeginFont.class, this::handleBFN_BeginFont);
+		registerHandler(SFTypeID.EFN_EndFont, EFN_EndFont.class, this::handleEFN_EndFont);
+		registerHandler(SFTypeID.BNG_BeginNamedPageGroup, BNG_BeginNamedPageGroup.class, this::handleBNG_BeginNamedPageGroup);
+		registerHandler(SFTypeID.ENG_EndNamedPageGroup, ENG_EndNamedPageGroup.class, this::handleENG_EndNamedPageGroup);
+		registerHandler(SFTypeID.BPG_BeginPage, BPG_BeginPage.class, this::handleBPG_BeginPage);
+		registerHandler(SFTypeID.EPG_EndPage, EPG_EndPage.class, this::handleEPG_EndPage);
+		registerHandler(SFTypeID.FNC_FontControl, FNC_FontControl.class, this::handleFNC_FontControl);
+		registerHandler(SFTypeID.FND_FontDescriptor, FND_FontDescriptor.class, this::handleFND_FontDescriptor);
+		registerHandler(SFTypeID.FNI_FontIndex, FNI_FontIndex.class, this::handleFNI_FontIndex);
+		registerHandler(SFTypeID.FNM_FontPatternsMap, FNM_FontPatternsMap.class, this::handleFNM_FontPatternsMap);
+		registerHandler(SFTypeID.FNO_FontOrientation, FNO_FontOrientation.class, this::handleFNO_FontOrientation);
+		registerHandler(SFTypeID.FNP_FontPosition, FNP_FontPosition.class, this::handleFNP_FontPosition);
+		registerHandler(SFTypeID.FNG_FontPatterns, FNG_FontPatterns.class, this::handleFNG_FontPatterns);
+		registerHandler(SFTypeID.MCF_MapCodedFont_Format2, MCF_MapCodedFont_Format2.class, this::handleMCF_MapCodedFont_Format2);
+		registerHandler(SFTypeID.BIM_BeginImageObject, BIM_BeginImageObject.class, this::handleBIM_BeginImageObject);
+		registerHandler(SFTypeID.EIM_EndImageObject, EIM_EndImageObject.class, this::handleEIM_EndImageObject);
+		registerHandler(SFTypeID.IPD_ImagePictureData, IPD_ImagePictureData.class, this::handleIPD_ImagePictureData);
+		registerHandler(SFTypeID.IDD_ImageDataDescriptor, IDD_ImageDataDescriptor.class, this::handleIDD_ImageDataDescriptor);
+		registerHandler(SFTypeID.OBD_ObjectAreaDescriptor, OBD_ObjectAreaDescriptor.class, this::handleOBD_ObjectAreaDescriptor);
+		registerHandler(SFTypeID.OBP_ObjectAreaPosition, OBP_ObjectAreaPosition.class, this::handleOBP_ObjectAreaPosition);
+		registerHandler(SFTypeID.PGD_PageDescriptor, PGD_PageDescriptor.class, this::handlePGD_PageDescriptor);
+		registerHandler(SFTypeID.PGP_PagePosition_Format1, PGP_PagePosition_Format1.class, this::handlePGP_PagePosition_Format1);
+		registerHandler(SFTypeID.BPT_BeginPresentationTextObject, BPT_BeginPresentationTextObject.class, this::handleBPT_BeginPresentationTextObject);
+		registerHandler(SFTypeID.PTX_PresentationTextData, PTX_PresentationTextData.class, this::handlePTX_PresentationTextData);
+		registerHandler(SFTypeID.PTD_PresentationTextDataDescriptor_Format2, PTD_PresentationTextDataDescriptor_Format2.class, this::handlePTD_PresentationTextDataDescriptor_Format2);
+	}
+	
+	/*
+	 * decodes a dropped resource by parsing its structured fields again, fonts are
+	 * mapped to the code page they were mapped to before
+	 */
+	class ResourceLoader implements ResourceCache.Loader {
+		
+		@Override
+		public FontProperties loadFont(MappedInputStream source, long start, long end, String codePageName) throws AFPParserException {
+			FontProperties f = reparse(source, start, end).resources.getFont(0);
+			if (codePageName != null) {
+				codeFont(f, codePageName);
+			}
+			return f;
+		}
+		@Override
+		public CodePage loadCodePage(MappedInputStream source, long start, long end) throws AFPParserException {
+			BaseParser p = reparse(source, start, end);
+			return p.resources.getCodePage(p.currentCodePage);
+		}
+		private BaseParser reparse(MappedInputStream source, long start, long end) throws AFPParserException {
+			return decodeResources(source, start, end, fontCache);
+		}
+	}
+	
+	/*
+	 * parser that has decoded the resources in bytes [start, end) of source
+	 */
+	static BaseParser decodeResources(MappedInputStream source, long start, long end, FontCache fontCache) throws AFPParserException {
+		BaseParser p = new BaseParser();
+		p.setDumpFonts(false);
+		p.setFontCache(fontCache);
+		p.setInputParser(source.range(start, end));
+		p.parse();
+		return p;
+	}
+	
+	/*
+	 * the buffer the parser would add, with a skip() that skips all n bytes unless
+	 * the input ends. shallow parsing takes a short skip for an error.
+	 */
+	static class SkippingInputStream extends BufferedInputStream {
+		
+		SkippingInputStream(InputStream in, int size) {
+			super(in, size);
+		}
+		
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			long done = 0;
+			while (done < n) {
+				long k = super.skip(n - done);
+				if (k <= 0) {
+					if (read() < 0) {
+						break;
+					}
+					k = 1;
+				}
+				done += k;
+			}
+			return done;
+		}
+	}
+	
+	/*
+	 * handler bound to the class the parser builds for its type id.
+	 * fields the parser failed to build come back as a different class and are skipped.
+	 */
+	private static class RegisteredHandler<T extends StructuredField> {
+		final Class<T> type;
+		final StructuredFieldHandler<? super T> handler;
+		
+		RegisteredHandler(Class<T> type, StructuredFieldHandler<? super T> handler) {
+			this.type = type;
+			this.handler = handler;
+		}
+		
+		void dispatch(StructuredField sf) {
+			if (this.type.isInstance(sf)) {
+				this.handler.handle(this.type.cast(sf));
+			}
+		}
 	}
 	
 	
@@ -479,7 +921,8 @@ public class BaseParser {
 		
 		int fontcounter = 0;
 		
-		for (FontProperties font : this.fonts) {
+		for (int f = 0; f < this.resources.getFontCount(); f++) {
+			FontProperties font = this.resources.getFont(f);
 		
 			String dumpfile = String.format("/tmp/font-%d", fontcounter);
 
@@ -533,28 +976,101 @@ public class BaseParser {
 		return bits;
 	}
 	
-	// write bytes to file, flipping every bit
+	// write bytes to file, flipping every bit. bytes is not changed.
 	public static void bytesOut(String file, byte[] bytes) throws IOException {
 
 		FileOutputStream os = new FileOutputStream(file);
-		
-		int i = 0;
-		for (Byte b: bytes) {
-			bytes[i++] = (byte) ~b;
-		}
-		os.write(bytes);
-
+		os.write(BilevelRaster.inverted(bytes));
 		os.close();
 	}
 	// return image data, flipping every bit
 	public static byte[] flipBits(byte[] data) {
-
-		byte[] bytes =  new byte[data.length];
-		int i = 0;
-		for (Byte b: data) {
-			bytes[i++] = (byte) ~b;
+		return BilevelRaster.inverted(data);
+	}
+	
+	public boolean isDumpFonts() {
+		return dumpFonts;
+	}
+	public void setDumpFonts(boolean dumpFonts) {
+		this.dumpFonts = dumpFonts;
+	}
+	public boolean isDirectPatterns() {
+		return currentFontPatterns.isDirect();
+	}
+	/*
+	 * keep FNG pattern data of the font being read off heap, set before parsing
+	 */
+	public void setDirectPatterns(boolean direct) {
+		if (direct != this.currentFontPatterns.isDirect()) {
+			this.currentFontPatterns = new PatternStore(direct);
 		}
-		return bytes;
+	}
+	public FontCache getFontCache() {
+		return fontCache;
+	}
+	public void setFontCache(FontCache fontCache) {
+		this.fontCache = fontCache;
+	}
+	public ResourceCache getResources() {
+		return resources;
+	}
+	/*
+	 * bytes of decoded fonts and code pages to keep, 0 keeps everything.
+	 * only resources of mapped input can be dropped, they are decoded again when referenced.
+	 */
+	public void setResourceBudget(long bytes) {
+		this.resources.setBudget(bytes);
+	}
+	public ResourceLibrary getResourceLibrary() {
+		return resourceLibrary;
+	}
+	/*
+	 * fonts and code pages that MCF names and the print file does not include are loaded from here
+	 */
+	public void setResourceLibrary(ResourceLibrary resourceLibrary) {
+		this.resourceLibrary = resourceLibrary;
+	}
+	public BitSet getPageSelection() {
+		return pageSelection;
+	}
+	/*
+	 * pages to handle, counted from 0 in file order, null handles all pages
+	 */
+	public void setPageSelection(BitSet pageSelection) {
+		this.pageSelection = pageSelection;
+	}
+	/*
+	 * page selection from a list of pages and ranges counting from 1, "1-10,25,40-45"
+	 */
+	public static BitSet parsePageSelection(String spec) {
+		BitSet pages = new BitSet();
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.isEmpty()) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			try {
+				int first = Integer.parseInt((dash < 0 ? part : part.substring(0, dash)).trim());
+				int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1).trim());
+				if (first < 1 || last < first) {
+					throw new IllegalArgumentException("Bad page range: " + part);
+				}
+				pages.set(first - 1, last);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad page range: " + part);
+			}
+		}
+		return pages;
+	}
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+	/*
+	 * fields read ahead of the handlers, 0 reads and handles on the calling thread
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
 	}
 	
 	public int getTextTop() {
@@ -584,6 +1100,7 @@ public class BaseParser {
 
 	public static void main(String[] argv) throws IOException, AFPParserException {
 		BaseParser bp = new BaseParser(argv[1]);
+		bp.setDumpFonts(Boolean.getBoolean("afpdf.dumpFonts"));
 		bp.parse();
 		bp.close();
 	}
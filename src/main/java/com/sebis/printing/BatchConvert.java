@@ -0,0 +1,166 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * convert many AFP files in one JVM on a pool of worker threads.
+ * input is a directory of .afp files or a manifest of "input output" lines.
+ * a failing file is reported and does not stop the others.
+ */
+public class BatchConvert {
+
+	private List<String[]> jobs = new ArrayList<String[]>();
+	private int threads;
+
+	public BatchConvert(int threads) {
+		this.threads = threads;
+	}
+
+	/*
+	 * every .afp file in inputDir, written as .pdf to outputDir
+	 */
+	public void addDirectory(File inputDir, File outputDir) {
+		File[] files = inputDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName();
+			if (f.isFile() && name.toLowerCase().endsWith(".afp")) {
+				File out = new File(outputDir, name.substring(0, name.length() - 4) + ".pdf");
+				this.addJob(f.getPath(), out.getPath());
+			}
+		}
+	}
+
+	/*
+	 * one "input output" pair per line, relative outputs go to outputDir. # starts a comment.
+	 */
+	public void addManifest(File manifest, File outputDir) throws IOException {
+		for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] pair = line.split("\\s+");
+			if (pair.length != 2) {
+				System.err.println("Ignoring manifest line: " + line);
+				continue;
+			}
+			File out = new File(pair[1]);
+			if (!out.isAbsolute()) {
+				out = new File(outputDir, pair[1]);
+			}
+			this.addJob(pair[0], out.getPath());
+		}
+	}
+
+	public void addJob(String inputFilename, String outputFilename) {
+		this.jobs.add(new String[] {inputFilename, outputFilename});
+	}
+
+	/*
+	 * run all jobs, returns the number that failed
+	 */
+	public int run() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		for (final String[] job : this.jobs) {
+			results.add(pool.submit(() -> {
+				StraightConvert.convert(job[0], job[1]);
+				return null;
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				failed += 1;
+				System.err.println("Failed to convert " + this.jobs.get(i)[0]);
+				e.getCause().printStackTrace();
+			}
+		}
+		return failed;
+	}
+
+	public int getJobCount() {
+		return jobs.size();
+	}
+
+	public static void main(String[] argv) {
+
+		if (argv.length < 2 || argv.length > 3) {
+			System.err.println("Provide input directory or manifest, output directory, and optionally the number of threads.");
+			System.exit(5);
+		}
+
+		File input = new File(argv[0]);
+		File outputDir = new File(argv[1]);
+		int threads = argv.length == 3 ? Integer.parseInt(argv[2]) : Runtime.getRuntime().availableProcessors();
+
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			System.err.println("Problem with output directory " + outputDir);
+			System.exit(2);
+		}
+
+		BatchConvert batch = new BatchConvert(threads);
+		try {
+			if (input.isDirectory()) {
+				batch.addDirectory(input, outputDir);
+			} else {
+				batch.addManifest(input, outputDir);
+			}
+		} catch (IOException e) {
+			System.err.println("Problem with manifest " + input);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		long started = System.nanoTime();
+		int failed = 0;
+		try {
+			failed = batch.run();
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted");
+			System.exit(4);
+		}
+
+		System.err.println(String.format("%d files, %d failed, %d threads: %d ms",
+				batch.getJobCount(), failed, threads, (System.nanoTime() - started) / 1000000));
+		StraightConvert.printMetrics();
+		if (failed > 0) {
+			System.exit(3);
+		}
+	}
+}
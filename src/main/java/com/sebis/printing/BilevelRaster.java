@@ -0,0 +1,171 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * operations on 1 bit per pixel rasters, rows are byte aligned, most significant bit first.
+ * scans and shifts read a long (64 pixels) at a time. inversion is a plain indexed loop,
+ * which the JIT turns into vector instructions wider than a long.
+ */
+public class BilevelRaster {
+
+	/*
+	 * invert every bit in place, returns data
+	 */
+	public static byte[] invert(byte[] data) {
+		return invert(data, 0, data.length);
+	}
+	public static byte[] invert(byte[] data, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			data[i] = (byte) ~data[i];
+		}
+		return data;
+	}
+	/*
+	 * inverted copy, data is left as it is
+	 */
+	public static byte[] inverted(byte[] data) {
+		byte[] copy = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			copy[i] = (byte) ~data[i];
+		}
+		return copy;
+	}
+
+	public static int rowBytes(int width) {
+		return (width + 7) >> 3;
+	}
+
+	/*
+	 * rows of stride bytes cut down to width pixels, bits past width set to fill
+	 */
+	public static byte[] stripPadding(byte[] data, int stride, int height, int width, boolean fill) {
+		int rowBytes = rowBytes(width);
+		byte[] out = new byte[rowBytes * height];
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(data, y * stride, out, y * rowBytes, rowBytes);
+		}
+		int extra = rowBytes * 8 - width;
+		if (extra > 0) {
+			int mask = (1 << extra) - 1;
+			for (int y = 0; y < height; y++) {
+				int last = y * rowBytes + rowBytes - 1;
+				out[last] = (byte) (fill ? out[last] | mask : out[last] & ~mask);
+			}
+		}
+		return out;
+	}
+
+	/*
+	 * smallest box holding every pixel that differs from background,
+	 * as {x, y, width, height}. null when there is none.
+	 */
+	public static int[] boundingBox(byte[] data, int stride, int height, int width, boolean background) {
+		int rowBytes = rowBytes(width);
+		int extra = rowBytes * 8 - width;
+		// pixels past width never count
+		int lastMask = (0xFF << extra) & 0xFF;
+		int bg = background ? 0xFF : 0x00;
+		long bgWord = background ? -1L : 0L;
+		ByteBuffer words = ByteBuffer.wrap(data);
+
+		int top = -1;
+		int bottom = -1;
+		int left = rowBytes * 8;
+		int right = -1;
+
+		for (int y = 0; y < height; y++) {
+			int row = y * stride;
+			int first = -1;
+			int last = -1;
+			int b = 0;
+			// skip background a word at a time
+			while (b + 8 <= rowBytes - 1 && words.getLong(row + b) == bgWord) {
+				b += 8;
+			}
+			for (; b < rowBytes; b++) {
+				int mask = b == rowBytes - 1 ? lastMask : 0xFF;
+				if (((data[row + b] ^ bg) & mask) != 0) {
+					if (first < 0) {
+						first = b;
+					}
+					last = b;
+				}
+			}
+			if (first < 0) {
+				continue;
+			}
+			if (top < 0) {
+				top = y;
+			}
+			bottom = y;
+
+			int mask = first == rowBytes - 1 ? lastMask : 0xFF;
+			int x = first * 8 + Integer.numberOfLeadingZeros(((data[row + first] ^ bg) & mask) << 24);
+			left = Math.min(left, x);
+			mask = last == rowBytes - 1 ? lastMask : 0xFF;
+			x = last * 8 + 7 - Integer.numberOfTrailingZeros((data[row + last] ^ bg) & mask);
+			right = Math.max(right, x);
+		}
+
+		if (top < 0) {
+			return null;
+		}
+		return new int[] {left, top, right - left + 1, bottom - top + 1};
+	}
+
+	/*
+	 * copy of the w x h rectangle at x,y, shifted so that x is the first bit of each row.
+	 * bits past w are set to fill.
+	 */
+	public static byte[] crop(byte[] data, int stride, int x, int y, int w, int h, boolean fill) {
+		int rowBytes = rowBytes(w);
+		byte[] out = new byte[rowBytes * h];
+		int shift = x & 7;
+		for (int r = 0; r < h; r++) {
+			int src = (y + r) * stride + (x >> 3);
+			int dst = r * rowBytes;
+			if (shift == 0) {
+				System.arraycopy(data, src, out, dst, rowBytes);
+			} else {
+				realign(data, src, stride - (x >> 3), out, dst, rowBytes, shift);
+			}
+		}
+		return stripPadding(out, rowBytes, h, w, fill);
+	}
+
+	/*
+	 * move a row left by shift bits. available is how many source bytes can be read.
+	 */
+	static void realign(byte[] src, int srcOff, int available, byte[] dst, int dstOff, int len, int shift) {
+		ByteBuffer in = ByteBuffer.wrap(src);
+		ByteBuffer out = ByteBuffer.wrap(dst);
+		int i = 0;
+		// 8 output bytes need 9 source bytes
+		for (; i + 9 <= available && i + 8 <= len; i += 8) {
+			long v = in.getLong(srcOff + i) << shift | (src[srcOff + i + 8] & 0xFF) >>> (8 - shift);
+			out.putLong(dstOff + i, v);
+		}
+		for (; i < len; i++) {
+			int hi = src[srcOff + i] & 0xFF;
+			int lo = i + 1 < available ? src[srcOff + i + 1] & 0xFF : 0;
+			dst[dstOff + i] = (byte) (hi << shift | lo >>> (8 - shift));
+		}
+	}
+}
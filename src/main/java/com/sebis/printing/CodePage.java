@@ -16,6 +16,7 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
 package com.sebis.printing;
 
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +27,8 @@ public class CodePage {
 	
 	String name;
 	Map<String, Integer> codePoints;
+	// compiled at ECP
+	TranslationTable translation;
 	
 	
 	public CodePage(String name) {
@@ -49,5 +52,26 @@ public class CodePage {
 	public Map<String,Integer> getCodePoints() {
 		return this.codePoints;
 	}
+	
+	/*
+	 * code points to unicode, double byte when any code point is above 0xFF
+	 */
+	public void compile(Charset charset) {
+		boolean doubleByte = false;
+		for (Integer cp : this.codePoints.values()) {
+			if (cp > 0xFF) {
+				doubleByte = true;
+				break;
+			}
+		}
+		this.translation = TranslationTable.forCharset(charset, doubleByte);
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	public TranslationTable getTranslation() {
+		return this.translation;
+	}
 
 }
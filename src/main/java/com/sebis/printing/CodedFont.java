@@ -0,0 +1,125 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.util.Map;
+
+/**
+ * a raster font mapped through a code page, compiled once into tables indexed by code point.
+ * looking up a character is an array load, no hashing or boxing.
+ *
+ * tables are two level, high byte then low byte of the code point. single byte code pages
+ * only fill the first page, double byte code pages get a page per lead byte in use.
+ */
+public class CodedFont {
+
+	FontProperties font;
+	String codePageName;
+	boolean doubleByte = false;
+	TranslationTable translation;
+
+	GlyphProperties[][] glyphs = new GlyphProperties[256][];
+	// FNI character increments in font units, copied out of the glyphs so measuring text stays
+	// in primitive arrays. OutputDocument.glyphScale() takes them to glyph space
+	short[][] advances = new short[256][];
+
+	public CodedFont(FontProperties font, String codePageName) {
+		this.font = font;
+		this.codePageName = codePageName;
+	}
+
+	/*
+	 * place every glyph of font the code page has a code point for
+	 */
+	public static CodedFont compile(FontProperties font, CodePage codePage) {
+		CodedFont cf = new CodedFont(font, codePage.getName());
+		cf.translation = codePage.getTranslation();
+		for (Map.Entry<String, GlyphProperties> e : font.getGlyphs().entrySet()) {
+			Integer codePoint = codePage.getCodePoint(e.getKey());
+			if (codePoint != null) {
+				cf.put(codePoint, e.getValue());
+			}
+		}
+		return cf;
+	}
+
+	public void put(int codePoint, GlyphProperties g) {
+		int hi = (codePoint >> 8) & 0xFF;
+		int lo = codePoint & 0xFF;
+		if (this.glyphs[hi] == null) {
+			this.glyphs[hi] = new GlyphProperties[256];
+			this.advances[hi] = new short[256];
+		}
+		if (hi != 0) {
+			this.doubleByte = true;
+		}
+		this.glyphs[hi][lo] = g;
+		this.advances[hi][lo] = g.getAdvance();
+	}
+
+	public GlyphProperties getGlyph(int codePoint) {
+		GlyphProperties[] page = this.glyphs[(codePoint >> 8) & 0xFF];
+		return page == null ? null : page[codePoint & 0xFF];
+	}
+	public int getAdvance(int codePoint) {
+		short[] page = this.advances[(codePoint >> 8) & 0xFF];
+		return page == null ? 0 : page[codePoint & 0xFF];
+	}
+	/*
+	 * advance of encoded text in font units, two bytes per character for double byte fonts
+	 */
+	public int getWidth(byte[] data, int off, int len) {
+		return getWidth(data, off, len, 1f);
+	}
+	/*
+	 * advance of encoded text with each advance scaled and truncated on its own, the way
+	 * Type3 glyph widths are
+	 */
+	public int getWidth(byte[] data, int off, int len, float scale) {
+		int width = 0;
+		if (!this.doubleByte) {
+			short[] page = this.advances[0];
+			if (page == null) {
+				return 0;
+			}
+			for (int i = off; i < off + len; i++) {
+				width += (int) (page[data[i] & 0xFF] * scale);
+			}
+			return width;
+		}
+		for (int i = off; i + 1 < off + len; i += 2) {
+			short[] page = this.advances[data[i] & 0xFF];
+			if (page != null) {
+				width += (int) (page[data[i + 1] & 0xFF] * scale);
+			}
+		}
+		return width;
+	}
+
+	public FontProperties getFont() {
+		return font;
+	}
+	public String getCodePageName() {
+		return codePageName;
+	}
+	public boolean isDoubleByte() {
+		return doubleByte;
+	}
+	public TranslationTable getTranslation() {
+		return translation;
+	}
+}
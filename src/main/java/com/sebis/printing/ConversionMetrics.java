@@ -0,0 +1,333 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.mgz.afp.enums.SFTypeID;
+
+/**
+ * process wide conversion counters, registered as MBean com.sebis.printing:type=ConversionMetrics.
+ * parsers count structured fields locally and add them here in batches, see BaseParser.
+ */
+public class ConversionMetrics implements ConversionMetricsMBean {
+
+	public static final String OBJECT_NAME = "com.sebis.printing:type=ConversionMetrics";
+
+	private static ConversionMetrics instance;
+
+	static final SFTypeID[] TYPES = SFTypeID.values();
+
+	private volatile long started = System.nanoTime();
+
+	// indexed by SFTypeID ordinal
+	private AtomicLongArray sfCounts = new AtomicLongArray(TYPES.length);
+	private AtomicLongArray sfNanos = new AtomicLongArray(TYPES.length);
+	private LongAdder parseNanos = new LongAdder();
+	private LongAdder inputBytes = new LongAdder();
+
+	private LongAdder skippedPages = new LongAdder();
+	private LongAdder fontsCompiled = new LongAdder();
+	private LongAdder glyphsCompiled = new LongAdder();
+	private LongAdder resourceHits = new LongAdder();
+	private LongAdder resourceMisses = new LongAdder();
+	private LongAdder resourceEvictions = new LongAdder();
+	private LongAdder imagesAdded = new LongAdder();
+	private LongAdder imagePixels = new LongAdder();
+	private LongAdder g4Images = new LongAdder();
+	private LongAdder g4RawBytes = new LongAdder();
+	private LongAdder g4Bytes = new LongAdder();
+	private LongAdder textRuns = new LongAdder();
+	private LongAdder textObjects = new LongAdder();
+	private LongAdder rules = new LongAdder();
+	private LongAdder outputBytes = new LongAdder();
+
+	// pipelined conversions, busy and waiting time of each stage
+	static final String[] STAGES = {"read", "render", "write"};
+	private AtomicLongArray stageBusyNanos = new AtomicLongArray(STAGES.length);
+	private AtomicLongArray stageWaitNanos = new AtomicLongArray(STAGES.length);
+
+	public static synchronized ConversionMetrics getInstance() {
+		if (instance == null) {
+			instance = new ConversionMetrics();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+			} catch (JMException e) {
+				System.err.println("Conversion metrics not available through JMX: " + e.getMessage());
+			}
+		}
+		return instance;
+	}
+
+	/*
+	 * add a parser's local counts, indexed by SFTypeID ordinal
+	 */
+	public void addStructuredFields(long[] counts, long[] nanos) {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				this.sfCounts.addAndGet(i, counts[i]);
+				this.sfNanos.addAndGet(i, nanos[i]);
+			}
+		}
+	}
+	public void addParse(long nanos, long bytes) {
+		this.parseNanos.add(nanos);
+		this.inputBytes.add(bytes);
+	}
+	public void addSkippedPage() {
+		this.skippedPages.increment();
+	}
+	public void addFont(int glyphs) {
+		this.fontsCompiled.increment();
+		this.glyphsCompiled.add(glyphs);
+	}
+	public void addGlyphs(int glyphs) {
+		this.glyphsCompiled.add(glyphs);
+	}
+	public void addResourceHit() {
+		this.resourceHits.increment();
+	}
+	public void addResourceMiss() {
+		this.resourceMisses.increment();
+	}
+	public void addResourceEviction() {
+		this.resourceEvictions.increment();
+	}
+	public void addImage(int width, int height) {
+		this.imagesAdded.increment();
+		this.imagePixels.add((long) width * height);
+	}
+	public void addG4Image(int rawBytes, int encodedBytes) {
+		this.g4Images.increment();
+		this.g4RawBytes.add(rawBytes);
+		this.g4Bytes.add(encodedBytes);
+	}
+	public void addTextRun() {
+		this.textRuns.increment();
+	}
+	public void addTextObject() {
+		this.textObjects.increment();
+	}
+	public void addRule() {
+		this.rules.increment();
+	}
+	public void addOutputBytes(long bytes) {
+		this.outputBytes.add(bytes);
+	}
+	public void addReadStage(long busyNanos, long waitNanos) {
+		addStage(0, busyNanos, waitNanos);
+	}
+	public void addRenderStage(long busyNanos, long waitNanos) {
+		addStage(1, busyNanos, waitNanos);
+	}
+	public void addWriteStage(long busyNanos, long waitNanos) {
+		addStage(2, busyNanos, waitNanos);
+	}
+	private void addStage(int stage, long busyNanos, long waitNanos) {
+		this.stageBusyNanos.addAndGet(stage, busyNanos);
+		this.stageWaitNanos.addAndGet(stage, waitNanos);
+	}
+
+	private double seconds() {
+		return (System.nanoTime() - this.started) / 1e9;
+	}
+
+	@Override
+	public long getStructuredFields() {
+		long n = 0;
+		for (int i = 0; i < TYPES.length; i++) {
+			n += this.sfCounts.get(i);
+		}
+		return n;
+	}
+	@Override
+	public long getParseMillis() {
+		return this.parseNanos.sum() / 1000000;
+	}
+	@Override
+	public long getHandlerMillis() {
+		long n = 0;
+		for (int i = 0; i < TYPES.length; i++) {
+			n += this.sfNanos.get(i);
+		}
+		return n / 1000000;
+	}
+	@Override
+	public String[] getStructuredFieldTypes() {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < TYPES.length; i++) {
+			if (this.sfCounts.get(i) != 0) {
+				lines.add(String.format("%s %d %d", TYPES[i].name(), this.sfCounts.get(i), this.sfNanos.get(i) / 1000000));
+			}
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+	@Override
+	public long getPages() {
+		return this.sfCounts.get(SFTypeID.EPG_EndPage.ordinal());
+	}
+	@Override
+	public double getPagesPerSecond() {
+		return getPages() / seconds();
+	}
+	@Override
+	public long getSkippedPages() {
+		return this.skippedPages.sum();
+	}
+	@Override
+	public long getInputBytes() {
+		return this.inputBytes.sum();
+	}
+	@Override
+	public double getInputBytesPerSecond() {
+		return getInputBytes() / seconds();
+	}
+	@Override
+	public long getFontsCompiled() {
+		return this.fontsCompiled.sum();
+	}
+	@Override
+	public long getGlyphsCompiled() {
+		return this.glyphsCompiled.sum();
+	}
+	@Override
+	public long getResourceHits() {
+		return this.resourceHits.sum();
+	}
+	@Override
+	public long getResourceMisses() {
+		return this.resourceMisses.sum();
+	}
+	@Override
+	public long getResourceEvictions() {
+		return this.resourceEvictions.sum();
+	}
+	@Override
+	public long getImagesAdded() {
+		return this.imagesAdded.sum();
+	}
+	@Override
+	public long getImagePixels() {
+		return this.imagePixels.sum();
+	}
+	@Override
+	public long getG4Images() {
+		return this.g4Images.sum();
+	}
+	@Override
+	public long getG4RawBytes() {
+		return this.g4RawBytes.sum();
+	}
+	@Override
+	public long getG4Bytes() {
+		return this.g4Bytes.sum();
+	}
+	@Override
+	public long getTextRuns() {
+		return this.textRuns.sum();
+	}
+	@Override
+	public long getTextObjects() {
+		return this.textObjects.sum();
+	}
+	@Override
+	public long getRules() {
+		return this.rules.sum();
+	}
+	@Override
+	public long getOutputBytes() {
+		return this.outputBytes.sum();
+	}
+
+	@Override
+	public String[] getPipelineStages() {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < STAGES.length; i++) {
+			long busy = this.stageBusyNanos.get(i);
+			long wait = this.stageWaitNanos.get(i);
+			if (busy + wait != 0) {
+				lines.add(String.format("%s %d %d %.0f%%", STAGES[i], busy / 1000000, wait / 1000000, 100.0 * busy / (busy + wait)));
+			}
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("pages: %d (%.1f/s)\n", getPages(), getPagesPerSecond()));
+		if (getSkippedPages() != 0) {
+			sb.append(String.format("pages skipped: %d\n", getSkippedPages()));
+		}
+		sb.append(String.format("input bytes: %d (%.0f/s)\n", getInputBytes(), getInputBytesPerSecond()));
+		sb.append(String.format("output bytes: %d\n", getOutputBytes()));
+		sb.append(String.format("structured fields: %d, parse %d ms, handlers %d ms\n", getStructuredFields(), getParseMillis(), getHandlerMillis()));
+		for (String line : getStructuredFieldTypes()) {
+			sb.append("  ").append(line).append(" ms\n");
+		}
+		sb.append(String.format("fonts compiled: %d, glyphs: %d\n", getFontsCompiled(), getGlyphsCompiled()));
+		sb.append(String.format("resources: %d hits, %d misses, %d evictions\n", getResourceHits(), getResourceMisses(), getResourceEvictions()));
+		sb.append(String.format("images added: %d, pixels: %d\n", getImagesAdded(), getImagePixels()));
+		sb.append(String.format("G4 images: %d, %d bytes raw, %d bytes encoded\n", getG4Images(), getG4RawBytes(), getG4Bytes()));
+		sb.append(String.format("text runs: %d in %d text objects, rules: %d\n", getTextRuns(), getTextObjects(), getRules()));
+		String[] stages = getPipelineStages();
+		if (stages.length > 0) {
+			sb.append("pipeline stages, busy ms, waiting ms, utilization:\n");
+			for (String line : stages) {
+				sb.append("  ").append(line).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < TYPES.length; i++) {
+			this.sfCounts.set(i, 0);
+			this.sfNanos.set(i, 0);
+		}
+		this.parseNanos.reset();
+		this.inputBytes.reset();
+		this.skippedPages.reset();
+		this.fontsCompiled.reset();
+		this.glyphsCompiled.reset();
+		this.resourceHits.reset();
+		this.resourceMisses.reset();
+		this.resourceEvictions.reset();
+		this.imagesAdded.reset();
+		this.imagePixels.reset();
+		this.g4Images.reset();
+		this.g4RawBytes.reset();
+		this.g4Bytes.reset();
+		this.textRuns.reset();
+		this.textObjects.reset();
+		this.rules.reset();
+		this.outputBytes.reset();
+		for (int i = 0; i < STAGES.length; i++) {
+			this.stageBusyNanos.set(i, 0);
+			this.stageWaitNanos.set(i, 0);
+		}
+		this.started = System.nanoTime();
+	}
+}
@@ -0,0 +1,59 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+/**
+ * JMX view of ConversionMetrics
+ */
+public interface ConversionMetricsMBean {
+
+	long getStructuredFields();
+	long getParseMillis();
+	long getHandlerMillis();
+	// one "type count millis" line per structured field type seen
+	String[] getStructuredFieldTypes();
+
+	long getPages();
+	double getPagesPerSecond();
+	// pages outside the page selection, read without decoding
+	long getSkippedPages();
+	long getInputBytes();
+	double getInputBytesPerSecond();
+
+	long getFontsCompiled();
+	long getGlyphsCompiled();
+	// font and code page lookups, and resources dropped to stay within the budget
+	long getResourceHits();
+	long getResourceMisses();
+	long getResourceEvictions();
+	long getImagesAdded();
+	long getImagePixels();
+	// images written as CCITT G4, with their size before and after
+	long getG4Images();
+	long getG4RawBytes();
+	long getG4Bytes();
+	long getTextRuns();
+	// PDF text objects the runs were merged into
+	long getTextObjects();
+	long getRules();
+	long getOutputBytes();
+	// one "stage busyMillis waitingMillis utilization" line per pipeline stage used
+	String[] getPipelineStages();
+
+	String report();
+	void reset();
+}
@@ -0,0 +1,174 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * directory of decoded raster fonts, so later runs can skip glyph extraction.
+ * entries are keyed by font character set name and a digest of the font's structured fields.
+ */
+public class FontCache {
+
+	static final int MAGIC = 0x41465046; // AFPF
+	static final int VERSION = 1;
+
+	private File directory;
+
+	public FontCache(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can not create font cache directory " + directory);
+		}
+		this.directory = directory;
+	}
+
+	/*
+	 * cache key from the font name and the digest of its FNC/FND/FNP/FNI/FNM fields and FNG data
+	 */
+	public static String key(String name, byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : name.trim().toCharArray()) {
+			sb.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		sb.append('-');
+		for (byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * decoded font for key, null when not cached or unreadable
+	 */
+	public FontProperties load(String key) {
+		File f = file(key);
+		if (!f.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			return read(in);
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable font cache entry " + f);
+			return null;
+		}
+	}
+
+	/*
+	 * write font for key. written to a temp file first so concurrent runs never see a partial entry.
+	 */
+	public void store(String key, FontProperties font) {
+		File f = file(key);
+		File tmp = null;
+		try {
+			// a name no other thread or process writes to
+			tmp = File.createTempFile(key, ".tmp", this.directory);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				write(out, font);
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Can not write font cache entry " + f);
+			e.printStackTrace();
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private File file(String key) {
+		return new File(this.directory, key + ".fnt");
+	}
+
+	static void write(DataOutputStream out, FontProperties font) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(font.getNominalSize());
+		out.writeInt(font.getMaxCharacterHeight());
+		out.writeInt(font.getMaxCharacterWidth());
+		out.writeInt(font.getMaxAscender());
+		out.writeInt(font.getMaxDescender());
+
+		out.writeInt(font.getGlyphs().size());
+		for (Map.Entry<String, GlyphProperties> e : font.getGlyphs().entrySet()) {
+			GlyphProperties g = e.getValue();
+			out.writeUTF(e.getKey());
+			out.writeInt(g.getCellWidth());
+			out.writeInt(g.getCellHeight());
+			out.writeInt(g.getCharWidth());
+			out.writeInt(g.getAscender());
+			out.writeInt(g.getDescender());
+			out.writeShort(g.getAspace());
+			out.writeShort(g.getBspace());
+			out.writeShort(g.getCspace());
+			out.writeShort(g.getBaselineShift());
+			out.writeShort(g.getAdvance());
+			out.writeInt(g.getData().length);
+			out.write(g.getData());
+		}
+	}
+
+	static FontProperties read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a font cache entry");
+		}
+		FontProperties font = new FontProperties();
+		font.setNominalSize(in.readInt());
+		font.setMaxCharacterHeight(in.readInt());
+		font.setMaxCharacterWidth(in.readInt());
+		font.setMaxAscender(in.readInt());
+		font.setMaxDescender(in.readInt());
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String gcgid = in.readUTF();
+			int cellWidth = in.readInt();
+			int cellHeight = in.readInt();
+			int charWidth = in.readInt();
+			int ascender = in.readInt();
+			int descender = in.readInt();
+			short aspace = in.readShort();
+			short bspace = in.readShort();
+			short cspace = in.readShort();
+			short baselineShift = in.readShort();
+			short advance = in.readShort();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+
+			GlyphProperties g = new GlyphProperties(gcgid, data, cellWidth, cellHeight);
+			g.setCharWidth(charWidth);
+			g.setAscender(ascender);
+			g.setDescender(descender);
+			g.setAspace(aspace);
+			g.setBspace(bspace);
+			g.setCspace(cspace);
+			g.setBaselineShift(baselineShift);
+			g.setAdvance(advance);
+			font.addGlyph(gcgid, g);
+		}
+		return font;
+	}
+}
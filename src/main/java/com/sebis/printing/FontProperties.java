@@ -32,11 +32,30 @@ public class FontProperties {
 	String codePageName;
 	// gcgid key
 	Map<String, GlyphProperties> glyphs;
+	// glyphs by code point, once mapped to a code page
+	CodedFont codedFont;
 	
 	public FontProperties() {
 		glyphs = new HashMap<String, GlyphProperties>();
 	}
 
+	/*
+	 * copy with its own glyph objects, bitmaps are shared. the copy is not mapped to a code page.
+	 */
+	public FontProperties copy() {
+		FontProperties f = new FontProperties();
+		f.nominalSize = this.nominalSize;
+		f.maxCharacterHeight = this.maxCharacterHeight;
+		f.maxCharacterWidth = this.maxCharacterWidth;
+		f.maxAscender = this.maxAscender;
+		f.maxDescender = this.maxDescender;
+		f.codePageName = this.codePageName;
+		for (Map.Entry<String, GlyphProperties> e : this.glyphs.entrySet()) {
+			f.glyphs.put(e.getKey(), new GlyphProperties(e.getValue()));
+		}
+		return f;
+	}
+
 	public void addGlyph(String gcgid, GlyphProperties glyph) {
 		this.glyphs.put(gcgid, glyph);
 	}
@@ -82,6 +101,13 @@ public class FontProperties {
 		this.maxDescender = maxDescender;
 	}
 
+	public CodedFont getCodedFont() {
+		return codedFont;
+	}
+	public void setCodedFont(CodedFont codedFont) {
+		this.codedFont = codedFont;
+	}
+
 	public String getCodePageName() {
 		return codePageName;
 	}
@@ -41,6 +41,23 @@ public class GlyphProperties {
 		this.cellWidth = cellWidth;
 		this.cellHeight = cellHeight;
 	}
+	// copy, sharing the bitmap
+	public GlyphProperties(GlyphProperties g) {
+		this.gcgid = g.gcgid;
+		this.codePoint = g.codePoint;
+		this.codePointEBCDIC = g.codePointEBCDIC;
+		this.cellWidth = g.cellWidth;
+		this.cellHeight = g.cellHeight;
+		this.charWidth = g.charWidth;
+		this.ascender = g.ascender;
+		this.descender = g.descender;
+		this.aspace = g.aspace;
+		this.bspace = g.bspace;
+		this.cspace = g.cspace;
+		this.baselineShift = g.baselineShift;
+		this.advance = g.advance;
+		this.data = g.data;
+	}
 
 	public char getCodePoint() {
 		return codePoint;
@@ -81,7 +98,11 @@ public class GlyphProperties {
 	 * just the data that makes up the character, without extra padding on right
 	 */
 	public byte[] getCharacterData() {
-		return null;
+		if (charWidth <= 0 || charWidth >= cellWidth) {
+			return data;
+		}
+		// inverted data, padding bits are background (set)
+		return BilevelRaster.stripPadding(data, cellWidth / 8, cellHeight, charWidth, true);
 	}
 	
 	public int getCharacterHeight() {
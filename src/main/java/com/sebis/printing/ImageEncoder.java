@@ -0,0 +1,274 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.util.Arrays;
+
+/**
+ * compress 1-bit images for embedding in PDF.
+ *
+ * CCITT Group 4 (T.6) suits scans, forms and signatures: runs are coded against the row above,
+ * so blank and repeated rows cost a few bits. halftones and noise code badly in G4 and
+ * are left to Flate.
+ */
+public class ImageEncoder {
+
+	public enum Compression {
+		// CCITT G4, plain Flate when G4 does not pay off
+		G4,
+		// Flate with PNG predictors
+		FLATE,
+		// Flate without predictors, as iText writes raw image data
+		NONE
+	}
+
+	// run length codes, T.4 tables 2 and 3. index is run for 0-63, 64 + run/64 - 1 for make up codes
+	private static final String[] WHITE_CODES = {
+		"00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+		"10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+		"101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+		"0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+		"00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+		"00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+		"00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+		"01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100",
+		// 64 - 1728
+		"11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+		"01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100", "011010101",
+		"011010110", "011010111", "011011000", "011011001", "011011010", "011011011", "010011000", "010011001",
+		"010011010", "011000", "010011011",
+	};
+	private static final String[] BLACK_CODES = {
+		"0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+		"000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+		"0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100", "00000110111", "00000101000",
+		"00000010111", "00000011000", "000011001010", "000011001011", "000011001100", "000011001101", "000001101000", "000001101001",
+		"000001101010", "000001101011", "000011010010", "000011010011", "000011010100", "000011010101", "000011010110", "000011010111",
+		"000001101100", "000001101101", "000011011010", "000011011011", "000001010100", "000001010101", "000001010110", "000001010111",
+		"000001100100", "000001100101", "000001010010", "000001010011", "000000100100", "000000110111", "000000111000", "000000100111",
+		"000000101000", "000001011000", "000001011001", "000000101011", "000000101100", "000001011010", "000001100110", "000001100111",
+		// 64 - 1728
+		"0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100", "000000110101", "0000001101100",
+		"0000001101101", "0000001001010", "0000001001011", "0000001001100", "0000001001101", "0000001110010", "0000001110011", "0000001110100",
+		"0000001110101", "0000001110110", "0000001110111", "0000001010010", "0000001010011", "0000001010100", "0000001010101", "0000001011010",
+		"0000001011011", "0000001100100", "0000001100101",
+	};
+	// 1792 - 2560, same for both colors
+	private static final String[] EXTENDED_CODES = {
+		"00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100", "000000010101",
+		"000000010110", "000000010111", "000000011100", "000000011101", "000000011110", "000000011111",
+	};
+
+	// code bits in the low end, length separately
+	private static final int[][] CODES = new int[2][];
+	private static final int[][] CODE_LENGTHS = new int[2][];
+	static {
+		String[][] tables = {WHITE_CODES, BLACK_CODES};
+		for (int c = 0; c < 2; c++) {
+			String[] all = Arrays.copyOf(tables[c], tables[c].length + EXTENDED_CODES.length);
+			System.arraycopy(EXTENDED_CODES, 0, all, tables[c].length, EXTENDED_CODES.length);
+			CODES[c] = new int[all.length];
+			CODE_LENGTHS[c] = new int[all.length];
+			for (int i = 0; i < all.length; i++) {
+				CODES[c][i] = Integer.parseInt(all[i], 2);
+				CODE_LENGTHS[c][i] = all[i].length();
+			}
+		}
+	}
+
+	// G4 is used when it is at most this part of the raw size
+	static final int G4_MAX_RATIO = 2;
+
+	private static final int WHITE = 0;
+	private static final int BLACK = 1;
+
+	// vertical mode codes for a1 - b1 = -3..3
+	private static final int[] VERTICAL_CODES = {0x02, 0x02, 0x02, 0x1, 0x3, 0x3, 0x3};
+	private static final int[] VERTICAL_LENGTHS = {7, 6, 3, 1, 3, 6, 7};
+
+	/*
+	 * CCITT G4 (K -1) of rows padded to whole bytes, ends with EOFB.
+	 * blackIs1 says which bit value is black in data.
+	 */
+	public static byte[] encodeG4(byte[] data, int width, int height, boolean blackIs1) {
+		int rowBytes = BilevelRaster.rowBytes(width);
+		BitWriter out = new BitWriter(Math.max(64, data.length / 8));
+
+		// changing elements of reference and coding line, padded with width
+		int[] ref = new int[width + 3];
+		int[] cur = new int[width + 3];
+		Arrays.fill(ref, width);
+
+		for (int y = 0; y < height; y++) {
+			changes(data, y * rowBytes, width, blackIs1, cur);
+
+			int a0 = -1;
+			int color = WHITE;
+			int ia = 0; // first element of cur past a0
+			int ib = 0; // first element of ref past a0
+			while (a0 < width) {
+				while (cur[ia] <= a0) {
+					ia++;
+				}
+				int a1 = cur[ia];
+				while (ref[ib] <= a0) {
+					ib++;
+				}
+				// b1 changes to the opposite color of a0, even elements change to black
+				int jb = (ib & 1) == color ? ib : ib + 1;
+				int b1 = ref[jb];
+				int b2 = ref[jb + 1];
+
+				if (b2 < a1) {
+					out.write(0x1, 4); // pass
+					a0 = b2;
+				} else if (a1 - b1 <= 3 && b1 - a1 <= 3) {
+					out.write(VERTICAL_CODES[a1 - b1 + 3], VERTICAL_LENGTHS[a1 - b1 + 3]);
+					a0 = a1;
+					color ^= 1;
+				} else {
+					int a2 = cur[ia + 1];
+					out.write(0x1, 3); // horizontal
+					run(out, a1 - Math.max(a0, 0), color);
+					run(out, a2 - a1, color ^ 1);
+					a0 = a2;
+				}
+			}
+
+			int[] t = ref;
+			ref = cur;
+			cur = t;
+		}
+
+		// EOFB
+		out.write(0x001, 12);
+		out.write(0x001, 12);
+		return out.toByteArray();
+	}
+
+	/*
+	 * positions where the color differs from the pixel before, starting from white.
+	 * followed by width three times.
+	 */
+	private static void changes(byte[] data, int off, int width, boolean blackIs1, int[] changes) {
+		int n = 0;
+		int color = WHITE;
+		int flip = blackIs1 ? 0 : 0xFF;
+		int rowBytes = BilevelRaster.rowBytes(width);
+		for (int b = 0; b < rowBytes; b++) {
+			// black pixels as 1 bits
+			int v = (data[off + b] ^ flip) & 0xFF;
+			if (v == (color == WHITE ? 0 : 0xFF)) {
+				continue;
+			}
+			int x = b << 3;
+			for (int bit = 7; bit >= 0 && x < width; bit--, x++) {
+				int pixel = (v >> bit) & 1;
+				if (pixel != color) {
+					changes[n++] = x;
+					color = pixel;
+				}
+			}
+		}
+		changes[n] = width;
+		changes[n + 1] = width;
+		changes[n + 2] = width;
+	}
+
+	private static void run(BitWriter out, int length, int color) {
+		int[] codes = CODES[color];
+		int[] lengths = CODE_LENGTHS[color];
+		while (length >= 2624) {
+			int i = codes.length - 1; // 2560
+			out.write(codes[i], lengths[i]);
+			length -= 2560;
+		}
+		if (length >= 64) {
+			int i = 63 + length / 64;
+			out.write(codes[i], lengths[i]);
+			length %= 64;
+		}
+		out.write(codes[length], lengths[length]);
+	}
+
+	/*
+	 * rows prefixed with a PNG filter type for Flate with /Predictor 15.
+	 * each row is Up (difference to the row above) or None, whichever looks smaller.
+	 */
+	public static byte[] predictPng(byte[] data, int width, int height) {
+		int rowBytes = BilevelRaster.rowBytes(width);
+		byte[] out = new byte[(rowBytes + 1) * height];
+		for (int y = 0; y < height; y++) {
+			int src = y * rowBytes;
+			int dst = y * (rowBytes + 1);
+			int none = 0;
+			int up = 0;
+			for (int i = 0; i < rowBytes; i++) {
+				int v = data[src + i];
+				int d = y == 0 ? v : (byte) (v - data[src + i - rowBytes]);
+				none += Math.abs(v);
+				up += Math.abs(d);
+			}
+			if (y > 0 && up < none) {
+				out[dst] = 2;
+				for (int i = 0; i < rowBytes; i++) {
+					out[dst + 1 + i] = (byte) (data[src + i] - data[src + i - rowBytes]);
+				}
+			} else {
+				out[dst] = 0;
+				System.arraycopy(data, src, out, dst + 1, rowBytes);
+			}
+		}
+		return out;
+	}
+
+	/*
+	 * most significant bit first
+	 */
+	static class BitWriter {
+		private byte[] buf;
+		private int len = 0;
+		private long bits = 0;
+		private int count = 0;
+
+		BitWriter(int capacity) {
+			this.buf = new byte[capacity];
+		}
+
+		void write(int code, int length) {
+			this.bits = this.bits << length | code;
+			this.count += length;
+			while (this.count >= 8) {
+				this.count -= 8;
+				put((int) (this.bits >>> this.count));
+			}
+		}
+		private void put(int b) {
+			if (this.len == this.buf.length) {
+				this.buf = Arrays.copyOf(this.buf, this.buf.length * 2);
+			}
+			this.buf[this.len++] = (byte) b;
+		}
+		byte[] toByteArray() {
+			if (this.count > 0) {
+				put((int) (this.bits << (8 - this.count)));
+				this.count = 0;
+			}
+			return Arrays.copyOf(this.buf, this.len);
+		}
+	}
+}
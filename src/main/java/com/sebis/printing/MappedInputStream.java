@@ -0,0 +1,190 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * read a file through read-only memory mapped segments.
+ * a single mapping is limited to 2GB, so larger files are split into segments.
+ */
+public class MappedInputStream extends InputStream {
+
+	// size of one mapped segment
+	static final long SEGMENT_SIZE = 1L << 30;
+
+	private FileChannel channel;
+	private ByteBuffer[] segments;
+	// file offset of this stream's first byte, ranges share the mapping of their parent
+	private long start = 0;
+	private long length;
+	private long position = 0;
+	private long mark = 0;
+	private boolean ownsChannel = true;
+
+	public MappedInputStream(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.length = this.channel.size();
+
+		int count = (int) ((this.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		this.segments = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = i * SEGMENT_SIZE;
+			MappedByteBuffer mbb = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, this.length - start));
+			this.segments[i] = mbb;
+		}
+	}
+
+	private MappedInputStream(MappedInputStream parent, long start, long length) {
+		this.channel = parent.channel;
+		this.segments = parent.segments;
+		this.start = parent.start + start;
+		this.length = length;
+		this.ownsChannel = false;
+	}
+
+	/*
+	 * stream over bytes [from, to) of this stream, sharing the mapping.
+	 * closing a range leaves the mapping open.
+	 */
+	public MappedInputStream range(long from, long to) {
+		if (from < 0 || to < from || to > this.length) {
+			throw new IndexOutOfBoundsException("range " + from + "-" + to + " outside of " + this.length);
+		}
+		return new MappedInputStream(this, from, to - from);
+	}
+
+	/*
+	 * bytes at offset as a read-only view of the mapping, no copy unless the range crosses a segment
+	 */
+	public ByteBuffer slice(long offset, int len) {
+		if (offset < 0 || len < 0 || offset + len > this.length) {
+			throw new IndexOutOfBoundsException("slice " + offset + "+" + len + " outside of " + this.length);
+		}
+		long fileOffset = this.start + offset;
+		int seg = (int) (fileOffset / SEGMENT_SIZE);
+		int segOffset = (int) (fileOffset % SEGMENT_SIZE);
+
+		if (segOffset + len <= this.segments[seg].capacity()) {
+			ByteBuffer b = this.segments[seg].duplicate();
+			b.position(segOffset).limit(segOffset + len);
+			return b.slice().asReadOnlyBuffer();
+		}
+
+		// spans a segment boundary, copy
+		byte[] buf = new byte[len];
+		read(offset, buf, 0, len);
+		return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+	}
+
+	/*
+	 * absolute read, does not move the stream position
+	 */
+	private int read(long offset, byte[] b, int off, int len) {
+		int done = 0;
+		len = (int) Math.min(len, this.length - offset);
+		offset += this.start;
+		while (done < len) {
+			ByteBuffer s = this.segments[(int) (offset / SEGMENT_SIZE)];
+			int segOffset = (int) (offset % SEGMENT_SIZE);
+			int n = Math.min(len - done, s.capacity() - segOffset);
+			ByteBuffer d = s.duplicate();
+			d.position(segOffset);
+			d.get(b, off + done, n);
+			done += n;
+			offset += n;
+		}
+		return done;
+	}
+
+	@Override
+	public int read() {
+		if (this.position >= this.length) {
+			return -1;
+		}
+		long fileOffset = this.start + this.position;
+		ByteBuffer s = this.segments[(int) (fileOffset / SEGMENT_SIZE)];
+		int b = s.get((int) (fileOffset % SEGMENT_SIZE)) & 0xFF;
+		this.position++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (this.position >= this.length) {
+			return -1;
+		}
+		int n = read(this.position, b, off, (int) Math.min(len, this.length - this.position));
+		this.position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, this.length - this.position));
+		this.position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, this.length - this.position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	@Override
+	public synchronized void mark(int readlimit) {
+		this.mark = this.position;
+	}
+	@Override
+	public synchronized void reset() {
+		this.position = this.mark;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// mappings are released when the buffers are collected
+		this.segments = new ByteBuffer[0];
+		this.length = 0;
+		if (this.ownsChannel) {
+			this.channel.close();
+		}
+	}
+
+	public long getPosition() {
+		return position;
+	}
+	public void setPosition(long position) {
+		this.position = position;
+	}
+	public long getLength() {
+		return length;
+	}
+}
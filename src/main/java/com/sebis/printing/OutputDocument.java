@@ -17,42 +17,102 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package com.sebis.printing;
 
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.itextpdf.io.image.ImageDataFactory;
 import com.itextpdf.io.image.RawImageData;
-import com.itextpdf.kernel.colors.DeviceRgb;
 import com.itextpdf.kernel.font.PdfFontFactory;
 import com.itextpdf.kernel.font.PdfType3Font;
 import com.itextpdf.kernel.geom.PageSize;
+import com.itextpdf.kernel.pdf.PdfArray;
+import com.itextpdf.kernel.pdf.PdfDictionary;
 import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfNumber;
+import com.itextpdf.kernel.pdf.PdfPage;
+import com.itextpdf.kernel.pdf.PdfStream;
+import com.itextpdf.kernel.pdf.PdfString;
 import com.itextpdf.kernel.pdf.PdfWriter;
 import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
-import com.itextpdf.layout.Document;
-import com.itextpdf.layout.element.AreaBreak;
-import com.itextpdf.layout.element.Image;
-import com.itextpdf.layout.element.Paragraph;
-import com.itextpdf.layout.property.AreaBreakType;
+import com.itextpdf.kernel.pdf.xobject.PdfImageXObject;
 
 
 /**
- * itext implementation to build pdf documents
+ * itext implementation to build pdf documents.
+ * pages are written out as soon as they end, so memory does not grow with page count.
  */
 public class OutputDocument {
 	
-	private String outputFilename;
+	private PdfWriter writer;
 	private PdfDocument pdfDoc;
-	private Document doc;
 	
-	private List<PdfType3Font> fonts;
+	// page being built, null between pages
+	private PdfPage page;
+	private PdfCanvas pageCanvas;
+	
+	private List<RasterFont> fonts;
+	
+	private ConversionMetrics metrics = ConversionMetrics.getInstance();
+	
+	static final int[] BLACK = new int[] {0, 0, 0};
+	
+	// Type3 glyph space is scaled for this size (the layout default)
+	static final float TEXT_FONT_SIZE = 12;
+	
+	// images already written, most recently used last
+	static final int MAX_SHARED_IMAGES = 256;
+	private Map<ImageKey, PdfImageXObject> images = new LinkedHashMap<ImageKey, PdfImageXObject>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ImageKey, PdfImageXObject> eldest) {
+			return size() > MAX_SHARED_IMAGES;
+		}
+	};
+	
+	// keys images by content
+	private MessageDigest imageDigest;
+	
+	private ImageEncoder.Compression imageCompression = ImageEncoder.Compression.G4;
+	// false for partial documents that are merged into the output later
+	private boolean countOutput = true;
+	// true keeps ended pages in memory, they are compressed and written by close()
+	private boolean flushPagesOnClose = false;
+	
+	// text state set on the current page
+	private PdfType3Font textFont;
+	private int[] textColor;
+	// text not written yet, runs on one baseline in one font and color are shown together
+	private TextBatch pendingText;
+	// characters of the text being added
+	private char[] textBuffer = new char[256];
+	// rules of the current page by color and width, stroked when the page ends
+	private Map<RuleStyle, RuleGroup> rules = new LinkedHashMap<RuleStyle, RuleGroup>();
 	
 	public OutputDocument (String outputFilename) throws FileNotFoundException {
-		this.outputFilename = outputFilename;
-		this.pdfDoc = new PdfDocument(new PdfWriter(this.outputFilename));
+		this(new PdfWriter(outputFilename));
+	}
+	public OutputDocument (OutputStream output) {
+		this(new PdfWriter(output));
+	}
+	private OutputDocument (PdfWriter writer) {
+		this.writer = writer;
+		this.pdfDoc = new PdfDocument(this.writer);
 		this.pdfDoc.setDefaultPageSize(PageSize.LETTER);
-		this.doc = new Document(pdfDoc);
-		this.fonts = new ArrayList<PdfType3Font>();
+		this.fonts = new ArrayList<RasterFont>();
+		try {
+			this.imageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
 	}
 	
 	/*
@@ -60,122 +120,470 @@ public class OutputDocument {
 	 */
 	public void addRawImage(byte[] data, int width, int height, float left, float top) {
 		// er 8.5x11" for now, image is 300dpi
-		float bottom = 792 - top - (height/4.1666f);
+		float scaledWidth = width/4.1666f;
+		float scaledHeight = height/4.1666f;
+		float bottom = 792 - top - scaledHeight;
 
-		RawImageData imageData =  (RawImageData) ImageDataFactory.create(width, height, 1, 1, data, null);
-		Image image = new Image(imageData, left, bottom, (width/4.1666f));
+		this.metrics.addImage(width, height);
+		this.flushText();
 		
-		//Image image2 = image.setBackgroundColor(new DeviceRgb(255, 0, 0));
+		// repeated images (logos, signatures) are written once and referenced after that
+		ImageKey key = new ImageKey(this.imageDigest.digest(data), width, height);
+		PdfImageXObject xObject = this.images.get(key);
+		if (xObject == null) {
+			xObject = this.createImage(data, width, height);
+			this.images.put(key, xObject);
+		}
 		
-		this.doc.add(image);
+		this.currentCanvas().addXObject(xObject, scaledWidth, 0, 0, scaledHeight, left, bottom);
 	}
 	
 	/*
-	 * add raster style font
+	 * image XObject for 1-bit data (0 is black), compressed as configured
 	 */
-	public int addRasterFont(FontProperties font) {
-		PdfType3Font t3 = PdfFontFactory.createType3Font(this.pdfDoc, false);
+	private PdfImageXObject createImage(byte[] data, int width, int height) {
 		
-		for (String key : font.getGlyphs().keySet()) {
+		if (this.imageCompression == ImageEncoder.Compression.G4) {
+			byte[] g4 = ImageEncoder.encodeG4(data, width, height, false);
+			if (g4.length * ImageEncoder.G4_MAX_RATIO <= data.length) {
+				this.metrics.addG4Image(data.length, g4.length);
+				return new PdfImageXObject(ImageDataFactory.create(width, height, false, RawImageData.CCITTG4, RawImageData.CCITT_ENDOFBLOCK, g4, null));
+			}
+		}
+		
+		if (this.imageCompression == ImageEncoder.Compression.FLATE) {
+			// rows with a PNG filter byte, iText adds the FlateDecode filter when writing
+			byte[] predicted = ImageEncoder.predictPng(data, width, height);
+			PdfStream stream = new PdfStream(predicted);
+			stream.put(PdfName.Type, PdfName.XObject);
+			stream.put(PdfName.Subtype, PdfName.Image);
+			stream.put(PdfName.Width, new PdfNumber(width));
+			stream.put(PdfName.Height, new PdfNumber(height));
+			stream.put(PdfName.BitsPerComponent, new PdfNumber(1));
+			stream.put(PdfName.ColorSpace, PdfName.DeviceGray);
+			PdfDictionary parms = new PdfDictionary();
+			parms.put(PdfName.Predictor, new PdfNumber(15));
+			parms.put(PdfName.Colors, new PdfNumber(1));
+			parms.put(PdfName.BitsPerComponent, new PdfNumber(1));
+			parms.put(PdfName.Columns, new PdfNumber(width));
+			stream.put(PdfName.DecodeParms, parms);
+			return new PdfImageXObject(stream);
+		}
 		
-			GlyphProperties g = font.getGlyph(key);
+		// flate compressed by iText when written
+		RawImageData imageData =  (RawImageData) ImageDataFactory.create(width, height, 1, 1, data, null);
+		return new PdfImageXObject(imageData);
+	}
+	
+	/*
+	 * add raster style font, font index of resources. glyphs are written when text first
+	 * uses them, the font itself is looked up in resources then and not held here.
+	 */
+	public int addRasterFont(ResourceCache resources, int index) {
+		RasterFont rf = new RasterFont(resources, index, PdfFontFactory.createType3Font(this.pdfDoc, false));
+		this.fonts.add(rf);
+		this.metrics.addFont(0);
+		return this.fonts.size();
+	}
+	public int getFontCount() {
+		return this.fonts.size();
+	}
+	
+	/*
+	 * characters of the glyphs encoded text shows, into textBuffer. writes the glyph
+	 * procedures the font does not have yet. code points without a glyph are left out.
+	 */
+	private int defineGlyphs(RasterFont rf, CodedFont coded, byte[] data, int off, int len) {
+		if (this.textBuffer.length < len) {
+			this.textBuffer = new char[Math.max(len, this.textBuffer.length * 2)];
+		}
+		int step = coded.isDoubleByte() ? 2 : 1;
+		int length = 0;
+		for (int i = off; i + step <= off + len; i += step) {
+			int cp = step == 2 ? ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF) : data[i] & 0xFF;
+			GlyphProperties g = coded.getGlyph(cp);
+			if (g == null) {
+				continue;
+			}
+			char c = g.getCodePoint();
+			if (!rf.defined.get(c)) {
+				rf.defined.set(c);
+				addGlyph(rf.t3, coded.getFont(), g);
+				this.metrics.addGlyphs(1);
+			}
+			this.textBuffer[length++] = c;
+		}
+		return length;
+	}
+	
+	private void addGlyph(PdfType3Font t3, FontProperties font, GlyphProperties g) {
 
-			// canvas is 6000 dpi?
-			float tx_factor = (font.getNominalSize()/72f) * 6000;
-			int cell_y = (int)(tx_factor);
+		// canvas is 6000 dpi?
+		float tx_factor = (font.getNominalSize()/72f) * 6000;
+		int cell_y = (int)(tx_factor);
 
-			// fonts are base 1000
-			int width = (int) (g.getAdvance() * (tx_factor/1000f));
-			
-			PdfCanvas i = t3.addGlyph((char)g.getCodePoint(), width, 0, 0, width, cell_y);
-			
-			//i.rectangle(0,0,width,cell_y).stroke();
+		// fonts are base 1000
+		int width = (int) (g.getAdvance() * glyphScale(font));
 		
-			RawImageData data =  (RawImageData) ImageDataFactory.create(g.getCharWidth(),g.getCellHeight(), 1, 1, g.data, null);
+		PdfCanvas i = t3.addGlyph((char)g.getCodePoint(), width, 0, 0, width, cell_y);
 		
-			data.makeMask();
-			
-			float scale_x = (g.getBspace()) * (tx_factor / 1000f);
-			float scale_y = g.getCharacterHeight() * (tx_factor / 1000f);
-
-			
-			float shift_y=0;
-			
-			int baseline = font.getMaxDescender();
-			
-			// ignore negative descender?
-			int glyphDescender = 0;
-			if (g.getDescender() > 0) {
-				glyphDescender = g.getDescender();
-			}
-			
-			shift_y = (baseline - glyphDescender) * (tx_factor / 1000f);
-			
-			if (g.getBaselineShift() > g.getCharacterHeight()) {
-				shift_y += (g.getBaselineShift()- g.getCharacterHeight());
-			}
-			
-			int shift_x = (int)(g.getAspace() * (tx_factor / 1000f));
+		//i.rectangle(0,0,width,cell_y).stroke();
+		
+		// only the part of the cell with ink is written, blank glyphs (spaces) get no image
+		int[] box = BilevelRaster.boundingBox(g.data, g.getCellWidth() / 8, g.getCellHeight(), g.getCharWidth(), true);
+		if (box == null) {
+			return;
+		}
+		byte[] ink = BilevelRaster.crop(g.data, g.getCellWidth() / 8, box[0], box[1], box[2], box[3], true);
+	
+		RawImageData data =  (RawImageData) ImageDataFactory.create(box[2], box[3], 1, 1, ink, null);
+	
+		data.makeMask();
+		
+		float scale_x = (g.getBspace()) * (tx_factor / 1000f);
+		float scale_y = g.getCharacterHeight() * (tx_factor / 1000f);
 
-			i.addImage(data,scale_x,0,0,scale_y,shift_x,shift_y,true);
+		
+		float shift_y=0;
+		
+		int baseline = font.getMaxDescender();
+		
+		// ignore negative descender?
+		int glyphDescender = 0;
+		if (g.getDescender() > 0) {
+			glyphDescender = g.getDescender();
 		}
 		
-		this.fonts.add(t3);
-		return this.fonts.size();
+		shift_y = (baseline - glyphDescender) * (tx_factor / 1000f);
+		
+		if (g.getBaselineShift() > g.getCharacterHeight()) {
+			shift_y += (g.getBaselineShift()- g.getCharacterHeight());
+		}
+		
+		int shift_x = (int)(g.getAspace() * (tx_factor / 1000f));
+		
+		// the box keeps its place in the cell, rows count from the top
+		float pixel_x = scale_x / g.getCharWidth();
+		float pixel_y = scale_y / g.getCellHeight();
+		float box_x = shift_x + box[0] * pixel_x;
+		float box_y = shift_y + (g.getCellHeight() - box[1] - box[3]) * pixel_y;
+
+		i.addImage(data,box[2] * pixel_x,0,0,box[3] * pixel_y,box_x,box_y,true);
+	}
+	
+	/*
+	 * FNI font units (glyph advances) to Type3 glyph space
+	 */
+	static float glyphScale(FontProperties font) {
+		// canvas is 6000 dpi?
+		float tx_factor = (font.getNominalSize()/72f) * 6000;
+		return tx_factor/1000f;
 	}
 	
 	/*
-	 * add text in font at position
+	 * add text in font at position, data[off, off+len) encoded in the font's code page
 	 */
-	public void addText(String text, int font, float fontShift, float left, float top, int[] rgb) {
+	public void addText(byte[] data, int off, int len, int font, float fontShift, float left, float top, int[] rgb) {
 		
 		//System.out.println(String.format("add text (font %d, shift %f): %s\n", font-1, fontShift, text));
 		
 		// er 8.5x11" for now
 		float bottom = 792 - top;
-		// all boxes go to end of page
-		float width = 612 - left;
 		
 		//Source measures from top, subtract line height
 		bottom -= fontShift;
 		
+		this.metrics.addTextRun();
+		// the text belongs to the page open now
+		this.currentCanvas();
 		
-		DeviceRgb drgb = new DeviceRgb(rgb[0], rgb[1], rgb[2]);
+		RasterFont rf = this.fonts.get(font-1);
+		CodedFont coded = rf.resources.getFont(rf.index).getCodedFont();
+		if (coded == null) {
+			// not mapped to a code page, no glyphs to show
+			return;
+		}
+		int length = this.defineGlyphs(rf, coded, data, off, len);
+		String s = new String(this.textBuffer, 0, length);
 		
-		// prepend null makes itext preserve leading spaces
-		Paragraph p = new Paragraph().add("\u0000").add(text)
-				.setFixedPosition(left,bottom,width).setFontColor(drgb).setFont(fonts.get(font-1));
-
-		this.doc.add(p);
+		TextBatch b = this.pendingText;
+		if (b != null && b.font == rf && b.bottom == bottom && Arrays.equals(b.rgb, rgb)) {
+			// move from where the previous run ended, in 1/1000 of the text size
+			float move = (left - b.end) * 1000 / TEXT_FONT_SIZE;
+			if (move != 0) {
+				b.pieces.add(new PdfNumber(-move));
+			}
+		} else {
+			this.flushText();
+			b = new TextBatch(rf, rgb.clone(), left, bottom);
+			this.pendingText = b;
+		}
+		b.pieces.add(new PdfString(rf.t3.convertToBytes(s)));
+		// as the viewer advances over the Type3 glyph widths
+		b.end = left + coded.getWidth(data, off, len, glyphScale(coded.getFont())) * TEXT_FONT_SIZE / 1000;
+	}
+	
+	/*
+	 * write the pending text as one text object
+	 */
+	private void flushText() {
+		TextBatch b = this.pendingText;
+		if (b == null) {
+			return;
+		}
+		this.pendingText = null;
+		this.metrics.addTextObject();
+		
+		PdfCanvas canvas = this.currentCanvas();
+		canvas.beginText();
+		
+		// font and color are graphics state, only set them when they change
+		PdfType3Font t3 = b.font.t3;
+		if (t3 != this.textFont) {
+			canvas.setFontAndSize(t3, TEXT_FONT_SIZE);
+			this.textFont = t3;
+		}
+		if (!Arrays.equals(b.rgb, this.textColor)) {
+			canvas.setFillColorRgb(b.rgb[0]/255f, b.rgb[1]/255f, b.rgb[2]/255f);
+			this.textColor = b.rgb;
+		}
+		
+		canvas.moveText(b.left, b.bottom).showText(b.pieces).endText();
 	}
 
 	/*
-	 *  draw a line
+	 *  draw a black line
 	 */
 	public void drawRule(float l1, float t1, float l2, float t2, float width) {
+		this.drawRule(l1, t1, l2, t2, width, BLACK);
+	}
+	/*
+	 *  draw a line, collected with the page's other lines of the same color and width
+	 */
+	public void drawRule(float l1, float t1, float l2, float t2, float width, int[] rgb) {
 
 		// er 8.5x11" for now
 		float b1 = 792 - t1;
 		float b2 = 792 - t2;
 		
-		PdfCanvas canvas = new PdfCanvas(this.pdfDoc.getLastPage());
+		this.metrics.addRule();
+		// the rules are stroked on this page
+		this.currentCanvas();
 		
-		canvas.setStrokeColor(new DeviceRgb(0,0,0)).setLineWidth(width).moveTo(l1,  b1).lineTo(l2, b2).stroke();
+		RuleStyle style = new RuleStyle(rgb, width);
+		RuleGroup group = this.rules.get(style);
+		if (group == null) {
+			group = new RuleGroup();
+			this.rules.put(new RuleStyle(rgb.clone(), width), group);
+		}
+		group.add(l1, b1, l2, b2);
+	}
+	
+	/*
+	 * one path and one stroke per color and width
+	 */
+	private void flushRules() {
+		if (this.rules.isEmpty()) {
+			return;
+		}
+		PdfCanvas canvas = this.currentCanvas();
+		for (Map.Entry<RuleStyle, RuleGroup> e : this.rules.entrySet()) {
+			int[] rgb = e.getKey().rgb;
+			RuleGroup g = e.getValue();
+			canvas.setStrokeColorRgb(rgb[0]/255f, rgb[1]/255f, rgb[2]/255f).setLineWidth(e.getKey().width);
+			for (int i = 0; i < g.size; i += 4) {
+				canvas.moveTo(g.lines[i], g.lines[i + 1]).lineTo(g.lines[i + 2], g.lines[i + 3]);
+			}
+			canvas.stroke();
+		}
+		this.rules.clear();
+	}
+	
+	public ImageEncoder.Compression getImageCompression() {
+		return imageCompression;
+	}
+	public void setImageCompression(ImageEncoder.Compression imageCompression) {
+		this.imageCompression = imageCompression;
+	}
+	public boolean isCountOutput() {
+		return countOutput;
+	}
+	public void setCountOutput(boolean countOutput) {
+		this.countOutput = countOutput;
+	}
+	public boolean isFlushPagesOnClose() {
+		return flushPagesOnClose;
+	}
+	/*
+	 * for documents closed on another thread, the page output is done there too
+	 */
+	public void setFlushPagesOnClose(boolean flushPagesOnClose) {
+		this.flushPagesOnClose = flushPagesOnClose;
 	}
 	
 	public void finalize() {
 		this.close();
 	}
 	public void close() {
-		this.doc.close();
+		if (this.pdfDoc.isClosed()) {
+			return;
+		}
+		if (this.page != null) {
+			this.endPage();
+		}
+		this.pdfDoc.close();
+		if (this.countOutput) {
+			this.metrics.addOutputBytes(this.writer.getCurrentPos());
+		}
 	}
 
+	/*
+	 * start a new page, ends the current one if still open
+	 */
 	public void addPage() {
-		//this.currentCanvas = new PdfCanvas(this.pdfDoc.addNewPage());
+		if (this.page != null) {
+			this.endPage();
+		}
+		this.page = this.pdfDoc.addNewPage();
+		this.pageCanvas = new PdfCanvas(this.page);
+		this.textFont = null;
+		this.textColor = null;
+	}
+	
+	/*
+	 * finish the current page and write it, with its images, to the output
+	 */
+	public void endPage() {
+		if (this.page == null) {
+			return;
+		}
+		this.flushText();
+		this.flushRules();
+		if (!this.flushPagesOnClose) {
+			this.page.flush(true);
+		}
+		this.page = null;
+		this.pageCanvas = null;
 	}
 	
-	public void addPageBreak() {
-		this.doc.add(new AreaBreak(AreaBreakType.NEXT_PAGE));
+	private PdfCanvas currentCanvas() {
+		if (this.page == null) {
+			this.addPage();
+		}
+		return this.pageCanvas;
+	}
+	
+	/*
+	 * Type3 font for a raster font, with the characters whose glyphs have been written.
+	 * glyphs are looked up by code point in the font's CodedFont, the font may be dropped
+	 * from resources and decoded again between uses.
+	 */
+	static class RasterFont {
+		final ResourceCache resources;
+		final int index;
+		final PdfType3Font t3;
+		final BitSet defined = new BitSet();
+		
+		RasterFont(ResourceCache resources, int index, PdfType3Font t3) {
+			this.resources = resources;
+			this.index = index;
+			this.t3 = t3;
+		}
+	}
+	
+	/*
+	 * text shown from left on a baseline: strings, with moves between them (TJ)
+	 */
+	static class TextBatch {
+		final RasterFont font;
+		final int[] rgb;
+		final float left;
+		final float bottom;
+		final PdfArray pieces = new PdfArray();
+		// where the last string ends
+		float end;
+		
+		TextBatch(RasterFont font, int[] rgb, float left, float bottom) {
+			this.font = font;
+			this.rgb = rgb;
+			this.left = left;
+			this.bottom = bottom;
+		}
+	}
+	
+	/*
+	 * rule color and line width
+	 */
+	static class RuleStyle {
+		final int[] rgb;
+		final float width;
+		
+		RuleStyle(int[] rgb, float width) {
+			this.rgb = rgb;
+			this.width = width;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(rgb) + Float.floatToIntBits(width);
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RuleStyle)) {
+				return false;
+			}
+			RuleStyle r = (RuleStyle) o;
+			return r.width == this.width && Arrays.equals(r.rgb, this.rgb);
+		}
+	}
+	
+	/*
+	 * end points of lines, x1 y1 x2 y2 each
+	 */
+	static class RuleGroup {
+		float[] lines = new float[64];
+		int size = 0;
+		
+		void add(float x1, float y1, float x2, float y2) {
+			if (this.size + 4 > this.lines.length) {
+				this.lines = Arrays.copyOf(this.lines, this.lines.length * 2);
+			}
+			this.lines[this.size++] = x1;
+			this.lines[this.size++] = y1;
+			this.lines[this.size++] = x2;
+			this.lines[this.size++] = y2;
+		}
+	}
+	
+	/*
+	 * image identity: same dimensions and same SHA-256 of the bits. the bitmap itself
+	 * is not kept, so remembered images don't hold on to page sized arrays.
+	 */
+	static class ImageKey {
+		final byte[] digest;
+		final int width;
+		final int height;
+		final int hash;
+		
+		ImageKey(byte[] digest, int width, int height) {
+			this.digest = digest;
+			this.width = width;
+			this.height = height;
+			this.hash = 31 * (31 * width + height) + Arrays.hashCode(digest);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ImageKey)) {
+				return false;
+			}
+			ImageKey k = (ImageKey) o;
+			return k.hash == this.hash && k.width == this.width && k.height == this.height && Arrays.equals(k.digest, this.digest);
+		}
 	}
 
 }
@@ -0,0 +1,454 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.mgz.afp.base.StructuredField;
+import com.mgz.afp.base.StructuredFieldIntroducer;
+import com.mgz.afp.enums.SFTypeID;
+import com.mgz.afp.exceptions.AFPParserException;
+import com.mgz.afp.parser.AFPParser;
+import com.mgz.afp.parser.AFPParserConfiguration;
+
+/**
+ * byte offsets of the pages in an AFP file.
+ * built from structured field introducers only, payloads are skipped.
+ *
+ * a page starts right after the previous page's EPG, so anything between pages
+ * (IMM, BNG...) goes with the page that follows it. the first page starts at its BPG,
+ * everything before it is the resource prefix.
+ *
+ * resource groups (BRG/ERG, also ones between pages of concatenated spools) and the
+ * BNG/ENG page groups are recorded as well.
+ * an index can be saved next to the input as a sidecar file and loaded instead of
+ * scanning the file again.
+ */
+public class PageIndex {
+
+	// sidecar file, "AFIX" and format version
+	static final int MAGIC = 0x41464958;
+	static final int VERSION = 3;
+	public static final String SIDECAR_SUFFIX = ".idx";
+
+	long length;
+	// end of the last resource group before the first page, 0 without one
+	long resourceEnd = 0;
+	// outermost resource groups in file order
+	List<ResourceGroup> resourceGroups = new ArrayList<ResourceGroup>();
+	List<Long> pageStarts = new ArrayList<Long>();
+	// medium map in effect where each page starts, null until the first IMM
+	List<String> pageMedia = new ArrayList<String>();
+	// in BNG order, nested groups follow the group that contains them
+	List<PageGroup> groups = new ArrayList<PageGroup>();
+
+	/*
+	 * a BNG/ENG named page group, from its BNG to the end of its ENG
+	 */
+	public static class PageGroup {
+		String name;
+		long start;
+		long end;
+		int firstPage;
+		int pageCount;
+
+		public String getName() {
+			return name;
+		}
+		public long getStart() {
+			return start;
+		}
+		public long getEnd() {
+			return end;
+		}
+		public int getFirstPage() {
+			return firstPage;
+		}
+		public int getPageCount() {
+			return pageCount;
+		}
+	}
+
+	/*
+	 * a BRG/ERG resource group, from its BRG to the end of its ERG
+	 */
+	public static class ResourceGroup {
+		long start;
+		long end;
+
+		public long getStart() {
+			return start;
+		}
+		public long getEnd() {
+			return end;
+		}
+	}
+
+	public static PageIndex build(MappedInputStream input) throws AFPParserException {
+		PageIndex index = new PageIndex();
+		index.length = input.getLength();
+
+		AFPParserConfiguration config = new AFPParserConfiguration();
+		config.setBufferSize(0);
+		config.setBuildShallow(true);
+		config.setInputStream(input.range(0, input.getLength()));
+		AFPParser parser = new AFPParser(config);
+
+		String medium = null;
+		String nextMedium = null;
+		long nextStart = -1;
+		Deque<PageGroup> open = new ArrayDeque<PageGroup>();
+		ResourceGroup resources = null;
+		int resourceDepth = 0;
+
+		StructuredField sf;
+		while ((sf = parser.parseNextSF()) != null) {
+			StructuredFieldIntroducer sfi = sf.getStructuredFieldIntroducer();
+			SFTypeID type = sfi.getSFTypeID();
+			long offset = sfi.getFileOffset();
+
+			if (type == SFTypeID.IMM_InvokeMediumMap) {
+				medium = name(input, config, sfi);
+			} else if (type == SFTypeID.BPG_BeginPage) {
+				index.pageStarts.add(nextStart < 0 ? offset : nextStart);
+				index.pageMedia.add(nextMedium);
+			} else if (type == SFTypeID.EPG_EndPage) {
+				nextStart = offset + 1 + sfi.getSFLength();
+				nextMedium = medium;
+			} else if (type == SFTypeID.BRG_BeginResourceGroup) {
+				if (resourceDepth++ == 0) {
+					resources = new ResourceGroup();
+					resources.start = offset;
+				}
+			} else if (type == SFTypeID.ERG_EndResourceGroup) {
+				if (index.pageStarts.isEmpty()) {
+					index.resourceEnd = offset + 1 + sfi.getSFLength();
+				}
+				if (resourceDepth > 0 && --resourceDepth == 0) {
+					resources.end = offset + 1 + sfi.getSFLength();
+					index.resourceGroups.add(resources);
+				}
+			} else if (type == SFTypeID.BNG_BeginNamedPageGroup) {
+				PageGroup g = new PageGroup();
+				g.name = name(input, config, sfi);
+				g.start = offset;
+				g.firstPage = index.pageStarts.size();
+				index.groups.add(g);
+				open.push(g);
+			} else if (type == SFTypeID.ENG_EndNamedPageGroup) {
+				if (!open.isEmpty()) {
+					PageGroup g = open.pop();
+					g.end = offset + 1 + sfi.getSFLength();
+					g.pageCount = index.pageStarts.size() - g.firstPage;
+				}
+			}
+		}
+		// groups left open run to the end of the file
+		if (resourceDepth > 0) {
+			resources.end = index.length;
+			index.resourceGroups.add(resources);
+		}
+		for (PageGroup g : open) {
+			g.end = index.length;
+			g.pageCount = index.pageStarts.size() - g.firstPage;
+		}
+		return index;
+	}
+
+	/*
+	 * shallow fields are not decoded, the name is the first 8 bytes of the payload
+	 */
+	private static String name(MappedInputStream input, AFPParserConfiguration config, StructuredFieldIntroducer sfi) {
+		ByteBuffer name = input.slice(sfi.getFileOffset() + 1 + sfi.getLengthOfStructuredFieldIntroducerIncludingExtension(), 8);
+		return config.getAfpCharSet().decode(name).toString();
+	}
+
+	/*
+	 * index from the sidecar of file when it matches the file, otherwise scan the
+	 * input and try to save the sidecar for next time
+	 */
+	public static PageIndex load(MappedInputStream input, File file) throws AFPParserException {
+		File sidecar = new File(file.getPath() + SIDECAR_SUFFIX);
+		if (sidecar.isFile()) {
+			try {
+				PageIndex index = read(sidecar, file);
+				if (index != null) {
+					return index;
+				}
+			} catch (IOException e) {
+				System.err.println("Ignoring page index " + sidecar + ": " + e.getMessage());
+			}
+		}
+		PageIndex index = build(input);
+		try {
+			index.write(sidecar, file);
+		} catch (IOException e) {
+			System.err.println("Page index not saved: " + e.getMessage());
+		}
+		return index;
+	}
+
+	/*
+	 * page starts are stored as deltas from the previous page, media as indexes into a name table.
+	 * written to a temp file first so concurrent runs never read a partial index.
+	 */
+	public void write(File sidecar, File file) throws IOException {
+		// a name no other thread or process writes to
+		File tmp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile().getParentFile());
+		try {
+			write(tmp, file.length(), file.lastModified());
+			Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+	private void write(File sidecar, long fileLength, long fileModified) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (String m : this.pageMedia) {
+			if (m != null && !names.contains(m)) {
+				names.add(m);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(fileModified);
+			out.writeLong(this.resourceEnd);
+
+			out.writeInt(this.resourceGroups.size());
+			for (ResourceGroup r : this.resourceGroups) {
+				out.writeLong(r.start);
+				out.writeLong(r.end);
+			}
+
+			out.writeInt(names.size());
+			for (String m : names) {
+				out.writeUTF(m);
+			}
+
+			out.writeInt(this.pageStarts.size());
+			long previous = 0;
+			for (int i = 0; i < this.pageStarts.size(); i++) {
+				long start = this.pageStarts.get(i);
+				out.writeLong(start - previous);
+				out.writeInt(names.indexOf(this.pageMedia.get(i)));
+				previous = start;
+			}
+
+			out.writeInt(this.groups.size());
+			for (PageGroup g : this.groups) {
+				out.writeUTF(g.name);
+				out.writeLong(g.start);
+				out.writeLong(g.end);
+				out.writeInt(g.firstPage);
+				out.writeInt(g.pageCount);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * null when the sidecar was written for another version of file
+	 */
+	public static PageIndex read(File sidecar, File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a page index");
+			}
+			if (in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+				return null;
+			}
+			PageIndex index = new PageIndex();
+			index.length = file.length();
+			index.resourceEnd = in.readLong();
+
+			int resourceGroups = in.readInt();
+			for (int i = 0; i < resourceGroups; i++) {
+				ResourceGroup r = new ResourceGroup();
+				r.start = in.readLong();
+				r.end = in.readLong();
+				index.resourceGroups.add(r);
+			}
+
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = in.readUTF();
+			}
+
+			int pages = in.readInt();
+			long start = 0;
+			for (int i = 0; i < pages; i++) {
+				start += in.readLong();
+				int medium = in.readInt();
+				index.pageStarts.add(start);
+				index.pageMedia.add(medium < 0 ? null : names[medium]);
+			}
+
+			int groups = in.readInt();
+			for (int i = 0; i < groups; i++) {
+				PageGroup g = new PageGroup();
+				g.name = in.readUTF();
+				g.start = in.readLong();
+				g.end = in.readLong();
+				g.firstPage = in.readInt();
+				g.pageCount = in.readInt();
+				index.groups.add(g);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getPageCount() {
+		return pageStarts.size();
+	}
+	/*
+	 * offset of the first page, the resource prefix ends here
+	 */
+	public long getFirstPageOffset() {
+		return pageStarts.isEmpty() ? length : pageStarts.get(0);
+	}
+	public long getPageStart(int page) {
+		return pageStarts.get(page);
+	}
+	/*
+	 * end of page, the next page's start or end of file for the last one
+	 */
+	public long getPageEnd(int page) {
+		return page + 1 < pageStarts.size() ? pageStarts.get(page + 1) : length;
+	}
+	public String getPageMedium(int page) {
+		return pageMedia.get(page);
+	}
+	public long getResourceEnd() {
+		return resourceEnd;
+	}
+	public List<ResourceGroup> getResourceGroups() {
+		return resourceGroups;
+	}
+	public List<PageGroup> getGroups() {
+		return groups;
+	}
+	/*
+	 * first group with this name, null if there is none
+	 */
+	public PageGroup getGroup(String name) {
+		for (PageGroup g : groups) {
+			if (g.name.trim().equals(name.trim())) {
+				return g;
+			}
+		}
+		return null;
+	}
+	public long getLength() {
+		return length;
+	}
+
+	/*
+	 * first and last page (from 0) of "n" or "first-last", pages numbered from 1
+	 */
+	public int[] pageRange(String spec) {
+		int[] r = range(spec);
+		return checked(r[0] - 1, r[1] - 1, getPageCount(), "pages " + spec);
+	}
+	/*
+	 * first and last page (from 0) of the groups "n" or "first-last", numbered from 1,
+	 * or of the group named spec
+	 */
+	public int[] groupRange(String spec) {
+		PageGroup g = getGroup(spec);
+		if (g == null) {
+			int[] r = range(spec);
+			checked(r[0] - 1, r[1] - 1, groups.size(), "groups " + spec);
+			PageGroup from = groups.get(r[0] - 1);
+			PageGroup to = groups.get(r[1] - 1);
+			return checked(from.firstPage, to.firstPage + to.pageCount - 1, getPageCount(), "groups " + spec);
+		}
+		return checked(g.firstPage, g.firstPage + g.pageCount - 1, getPageCount(), "group " + spec);
+	}
+	private static int[] range(String spec) {
+		try {
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				int n = Integer.parseInt(spec.trim());
+				return new int[] {n, n};
+			}
+			return new int[] {Integer.parseInt(spec.substring(0, dash).trim()), Integer.parseInt(spec.substring(dash + 1).trim())};
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a range or group name: " + spec);
+		}
+	}
+	private static int[] checked(int first, int last, int count, String what) {
+		if (first < 0 || last < first || last >= count) {
+			throw new IndexOutOfBoundsException(what + " outside of " + count);
+		}
+		return new int[] {first, last};
+	}
+
+	/*
+	 * index a file and save its sidecar
+	 */
+	public static void main(String[] argv) {
+
+		if (argv.length != 1) {
+			System.err.println("Provide input file.");
+			System.exit(5);
+		}
+
+		File file = new File(argv[0]);
+		try {
+			MappedInputStream input = new MappedInputStream(file);
+			try {
+				PageIndex index = build(input);
+				index.write(new File(file.getPath() + SIDECAR_SUFFIX), file);
+				System.err.println(String.format("%d pages, %d groups, resources end at %d",
+						index.getPageCount(), index.getGroups().size(), index.getResourceEnd()));
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Problem with input or index file");
+			e.printStackTrace();
+			System.exit(1);
+		} catch (AFPParserException e) {
+			System.err.println("Parser exception");
+			e.printStackTrace();
+			System.exit(3);
+		}
+	}
+}
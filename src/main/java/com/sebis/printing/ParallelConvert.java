@@ -0,0 +1,251 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.utils.PdfMerger;
+import com.mgz.afp.exceptions.AFPParserException;
+
+/**
+ * convert one AFP file on several threads.
+ * the resource prefix is decoded once, the pages are split into ranges that are
+ * converted to partial PDFs in parallel, then the parts are merged in order.
+ */
+public class ParallelConvert {
+
+	// ranges per thread, more ranges even out pages of different cost
+	static final int RANGES_PER_THREAD = 4;
+
+	private String inputFilename;
+	private String outputFilename;
+	private int threads;
+
+	public ParallelConvert(String inputFilename, String outputFilename, int threads) {
+		this.inputFilename = inputFilename;
+		this.outputFilename = outputFilename;
+		this.threads = threads;
+	}
+
+	public void convert() throws IOException, AFPParserException, InterruptedException, ExecutionException {
+
+		long started = System.nanoTime();
+
+		MappedInputStream input = new MappedInputStream(new File(this.inputFilename));
+		try {
+			PageIndex index = PageIndex.load(input, new File(this.inputFilename));
+
+			// decode code pages, fonts and medium maps once
+			BaseParser resources = new BaseParser();
+			resources.setDumpFonts(false);
+			resources.setInputParser(input.range(0, index.getFirstPageOffset()));
+			resources.parse();
+
+			int pages = index.getPageCount();
+			if (pages == 0) {
+				throw new IOException("No pages in " + this.inputFilename);
+			}
+			int ranges = Math.max(1, Math.min(pages, this.threads * RANGES_PER_THREAD));
+
+			// afpdf.select counts pages from the start of the file, each range gets its part of it
+			BitSet selection = null;
+			String select = System.getProperty("afpdf.select");
+			if (select != null) {
+				try {
+					selection = BaseParser.parsePageSelection(select);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage() + ", converting all pages");
+				}
+				if (selection != null && selection.nextSetBit(0) >= pages) {
+					throw new IOException("No selected pages in " + this.inputFilename);
+				}
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+			List<Future<File>> parts = new ArrayList<Future<File>>();
+			try {
+				long decoded = index.getFirstPageOffset();
+				for (int r = 0; r < ranges; r++) {
+					int first = (int) ((long) pages * r / ranges);
+					int last = (int) ((long) pages * (r + 1) / ranges) - 1;
+					BitSet rangeSelection = selection != null ? selection.get(first, last + 1) : null;
+					if (rangeSelection != null && rangeSelection.isEmpty()) {
+						continue;
+					}
+					// inline resource groups between pages, as a serial run would have read them
+					long rangeStart = index.getPageStart(first);
+					resources = addResourceGroups(input, index, resources, decoded, rangeStart);
+					decoded = Math.max(decoded, rangeStart);
+
+					File part = new File(this.outputFilename + ".part" + r);
+					RangeConversion conversion = new RangeConversion(input, index, resources, first, last, part);
+					// only the merged document counts as output
+					conversion.countOutput = false;
+					conversion.selection = rangeSelection;
+					parts.add(pool.submit(conversion));
+				}
+
+				merge(parts);
+			} finally {
+				pool.shutdownNow();
+				for (int r = 0; r < ranges; r++) {
+					new File(this.outputFilename + ".part" + r).delete();
+				}
+			}
+
+			System.err.println(String.format("%d pages, %d ranges, %d threads: %d ms",
+					pages, ranges, this.threads, (System.nanoTime() - started) / 1000000));
+		} finally {
+			input.close();
+		}
+	}
+
+	/*
+	 * resources after the resource groups in [from, to) of the input are decoded. a new
+	 * parser when there are any, resources may already be shared with ranges submitted.
+	 */
+	static BaseParser addResourceGroups(MappedInputStream input, PageIndex index, BaseParser resources, long from, long to) throws AFPParserException {
+		BaseParser added = resources;
+		for (PageIndex.ResourceGroup group : index.getResourceGroups()) {
+			if (group.getStart() >= from && group.getEnd() <= to) {
+				if (added == resources) {
+					added = new BaseParser();
+					added.setDumpFonts(false);
+					added.shareResources(resources);
+				}
+				added.setInputParser(input.range(group.getStart(), group.getEnd()));
+				added.parse();
+			}
+		}
+		return added;
+	}
+
+	/*
+	 * append the partial documents in order. nothing is left at the output path when a part failed.
+	 */
+	private void merge(List<Future<File>> parts) throws IOException, InterruptedException, ExecutionException {
+		PdfWriter writer = new PdfWriter(this.outputFilename);
+		PdfDocument merged = new PdfDocument(writer);
+		PdfMerger merger = new PdfMerger(merged);
+
+		boolean written = false;
+		try {
+			for (int i = 0; i < parts.size(); i++) {
+				File part = parts.get(i).get();
+				PdfDocument src = new PdfDocument(new PdfReader(part.getPath()));
+				merger.merge(src, 1, src.getNumberOfPages());
+				src.close();
+				part.delete();
+			}
+			merged.close();
+			written = true;
+		} finally {
+			if (!written) {
+				writer.close();
+				new File(this.outputFilename).delete();
+			}
+		}
+		ConversionMetrics.getInstance().addOutputBytes(writer.getCurrentPos());
+	}
+
+	/*
+	 * convert pages first..last to their own PDF
+	 */
+	static class RangeConversion implements Callable<File> {
+
+		MappedInputStream input;
+		PageIndex index;
+		BaseParser resources;
+		int first;
+		int last;
+		File output;
+		// add the document's size to the output bytes
+		boolean countOutput = true;
+		// pages to convert counting from first, null for all
+		BitSet selection;
+
+		RangeConversion(MappedInputStream input, PageIndex index, BaseParser resources, int first, int last, File output) {
+			this.input = input;
+			this.index = index;
+			this.resources = resources;
+			this.first = first;
+			this.last = last;
+			this.output = output;
+		}
+
+		@Override
+		public File call() throws IOException, AFPParserException {
+			StraightConvert convert = new StraightConvert();
+			convert.applyOptions();
+			convert.setDumpFonts(false);
+			// the range is already a part of the file read on its own thread, the selection
+			// applied to it counts from the range's first page
+			convert.setPageSelection(this.selection);
+			convert.setPipelineDepth(0);
+			convert.setWriterDepth(0);
+			convert.shareResources(this.resources);
+			if (this.index.getPageMedium(this.first) != null) {
+				convert.invokeMedium(this.index.getPageMedium(this.first));
+			}
+			convert.setInputParser(this.input.range(this.index.getPageStart(this.first), this.index.getPageEnd(this.last)));
+			convert.setOutputDocument(this.output.getPath());
+			convert.pdfOut.setCountOutput(this.countOutput);
+			convert.parse();
+			convert.closeAll();
+			return this.output;
+		}
+	}
+
+	public static void main(String[] argv) {
+
+		if (argv.length < 2 || argv.length > 3) {
+			System.err.println("Provide input and output files, and optionally the number of threads.");
+			System.exit(5);
+		}
+
+		int threads = argv.length == 3 ? Integer.parseInt(argv[2]) : Runtime.getRuntime().availableProcessors();
+
+		try {
+			new ParallelConvert(argv[0], argv[1], threads).convert();
+		} catch (IOException e) {
+			System.err.println("Problem with input or output file");
+			e.printStackTrace();
+			System.exit(1);
+		} catch (AFPParserException e) {
+			System.err.println("Parser exception");
+			e.printStackTrace();
+			System.exit(3);
+		} catch (InterruptedException | ExecutionException e) {
+			System.err.println("Conversion failed");
+			e.printStackTrace();
+			System.exit(4);
+		}
+		StraightConvert.printMetrics();
+	}
+}
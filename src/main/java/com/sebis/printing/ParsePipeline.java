@@ -0,0 +1,155 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.mgz.afp.base.StructuredField;
+import com.mgz.afp.exceptions.AFPParserException;
+import com.mgz.afp.ioca.ImageObject;
+
+/**
+ * read and decode structured fields on their own thread, ahead of the handlers.
+ * fields come from BaseParser.nextField(), so skipped pages are skipped on this thread.
+ * fields are handed over in file order through a bounded queue, a full queue
+ * blocks the reader until the handlers catch up.
+ *
+ * the parser keeps the image object being assembled in its configuration, it is
+ * captured with each field so handlers see the object that field belongs to.
+ */
+public class ParsePipeline {
+
+	static class Entry {
+		final StructuredField sf;
+		final ImageObject image;
+		final long parseNanos;
+		final long bytesRead;
+
+		Entry(StructuredField sf, ImageObject image, long parseNanos, long bytesRead) {
+			this.sf = sf;
+			this.image = image;
+			this.parseNanos = parseNanos;
+			this.bytesRead = bytesRead;
+		}
+	}
+
+	// marks the end of input
+	private static final Entry END = new Entry(null, null, 0, 0);
+
+	private final BaseParser source;
+	private final BlockingQueue<Entry> queue;
+	private Thread reader;
+	// what ended the reader early, handed to the thread calling take()
+	private volatile Throwable error;
+
+	// reader stage, written by the reader thread and read after it ends
+	private volatile long readBusyNanos = 0;
+	private volatile long readWaitNanos = 0;
+	// render stage, the thread calling take()
+	private long renderWaitNanos = 0;
+	private long started;
+
+	public ParsePipeline(BaseParser source, int depth) {
+		this.source = source;
+		this.queue = new ArrayBlockingQueue<Entry>(depth);
+	}
+
+	public void start() {
+		this.started = System.nanoTime();
+		this.reader = new Thread(this::read, "afpdf-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void read() {
+		long busy = 0;
+		long wait = 0;
+		try {
+			StructuredField sf;
+			do {
+				long t0 = System.nanoTime();
+				sf = this.source.nextField();
+				long t1 = System.nanoTime();
+				Entry e = sf == null ? END : new Entry(sf, this.source.config.getCurrentImageObject(), t1 - t0, this.source.parser.getCountReadByte());
+				this.queue.put(e);
+				busy += t1 - t0;
+				wait += System.nanoTime() - t1;
+			} while (sf != null);
+		} catch (InterruptedException e) {
+			// handlers stopped, nobody is waiting for more fields
+		} catch (Throwable e) {
+			// errors too, the handlers would wait for END forever
+			this.error = e;
+			end();
+		} finally {
+			this.readBusyNanos = busy;
+			this.readWaitNanos = wait;
+		}
+	}
+
+	private void end() {
+		try {
+			this.queue.put(END);
+		} catch (InterruptedException e) {
+			// handlers stopped
+		}
+	}
+
+	/*
+	 * next field in file order, null at the end of input
+	 */
+	public Entry take() throws AFPParserException {
+		long t0 = System.nanoTime();
+		Entry e;
+		try {
+			e = this.queue.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new AFPParserException("Interrupted waiting for the reader", ie);
+		}
+		this.renderWaitNanos += System.nanoTime() - t0;
+		if (e == END) {
+			Throwable error = this.error;
+			if (error instanceof AFPParserException) {
+				throw (AFPParserException) error;
+			} else if (error instanceof Error) {
+				throw (Error) error;
+			} else if (error != null) {
+				throw new AFPParserException("Reader failed", error);
+			}
+			return null;
+		}
+		return e;
+	}
+
+	/*
+	 * stop the reader and add stage times to the metrics
+	 */
+	public void close() {
+		this.reader.interrupt();
+		try {
+			this.reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long wall = System.nanoTime() - this.started;
+		ConversionMetrics metrics = ConversionMetrics.getInstance();
+		metrics.addReadStage(this.readBusyNanos, this.readWaitNanos);
+		metrics.addRenderStage(wall - this.renderWaitNanos, this.renderWaitNanos);
+	}
+}
@@ -0,0 +1,102 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * growable store for font pattern (FNG) data.
+ * data is kept in fixed size segments, so appending never moves what is already stored.
+ */
+public class PatternStore {
+
+	// 64k segments
+	static final int SEGMENT_SHIFT = 16;
+	static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private boolean direct;
+	private List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private long size = 0;
+
+	public PatternStore() {
+		this(false);
+	}
+	/*
+	 * direct segments are allocated off heap
+	 */
+	public PatternStore(boolean direct) {
+		this.direct = direct;
+	}
+
+	public void append(byte[] data) {
+		append(ByteBuffer.wrap(data));
+	}
+	public void append(ByteBuffer data) {
+		ByteBuffer src = data.duplicate();
+		while (src.hasRemaining()) {
+			int seg = (int) (this.size >>> SEGMENT_SHIFT);
+			if (seg == this.segments.size()) {
+				this.segments.add(this.direct ? ByteBuffer.allocateDirect(SEGMENT_SIZE) : ByteBuffer.allocate(SEGMENT_SIZE));
+			}
+			ByteBuffer dst = this.segments.get(seg);
+			dst.clear().position((int) (this.size & SEGMENT_MASK));
+
+			int n = Math.min(dst.remaining(), src.remaining());
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + n);
+			dst.put(chunk);
+			src.position(src.position() + n);
+			this.size += n;
+		}
+	}
+
+	/*
+	 * copy len bytes starting at offset into dst
+	 */
+	public void read(long offset, byte[] dst, int dstOffset, int len) {
+		if (offset < 0 || offset + len > this.size) {
+			throw new IndexOutOfBoundsException("pattern " + offset + "+" + len + " outside of " + this.size);
+		}
+		while (len > 0) {
+			ByteBuffer seg = this.segments.get((int) (offset >>> SEGMENT_SHIFT)).duplicate();
+			int segOffset = (int) (offset & SEGMENT_MASK);
+			int n = Math.min(len, SEGMENT_SIZE - segOffset);
+			seg.clear().position(segOffset);
+			seg.get(dst, dstOffset, n);
+			offset += n;
+			dstOffset += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * forget stored data, segments are kept for the next font
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	public long size() {
+		return size;
+	}
+	public boolean isDirect() {
+		return direct;
+	}
+}
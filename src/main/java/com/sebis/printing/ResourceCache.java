@@ -0,0 +1,299 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mgz.afp.exceptions.AFPParserException;
+
+/**
+ * decoded fonts and code pages of a parser, kept within a memory budget.
+ * when the budget is exceeded the least recently used are dropped, and decoded again
+ * from their structured fields when referenced later. resources of streamed input
+ * can't be read again and are never dropped.
+ */
+public class ResourceCache {
+
+	/*
+	 * decodes a resource again from bytes [start, end) of source
+	 */
+	public interface Loader {
+		FontProperties loadFont(MappedInputStream source, long start, long end, String codePageName) throws AFPParserException;
+		CodePage loadCodePage(MappedInputStream source, long start, long end) throws AFPParserException;
+	}
+
+	// estimated heap use besides the glyph bitmaps
+	static final int GLYPH_OVERHEAD = 160;
+	static final int CODE_POINT_OVERHEAD = 64;
+
+	static class Entry {
+		boolean font;
+		String name;
+		// FontProperties or CodePage, null when dropped
+		Object value;
+		// code page the font is mapped to, a dropped font is mapped again when decoded
+		String codePageName;
+		long size;
+		// where the resource was defined, source is null for streamed input and end is -1 while incomplete
+		MappedInputStream source;
+		long start;
+		long end;
+
+		boolean isReloadable() {
+			return this.source != null && this.end >= 0;
+		}
+	}
+
+	private Loader loader;
+	// bytes, 0 keeps everything
+	private long budget = 0;
+	private long used = 0;
+
+	// fonts in definition order, MCF and the text refer to them by position
+	private final List<Entry> fonts = new ArrayList<Entry>();
+	private final Map<String, Entry> codePages = new HashMap<String, Entry>();
+	// entries holding a value, least recently used first
+	private final LinkedHashMap<Entry, Entry> resident = new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private final ConversionMetrics metrics = ConversionMetrics.getInstance();
+
+	public ResourceCache(Loader loader) {
+		this.loader = loader;
+	}
+
+	public synchronized void addFont(FontProperties font, MappedInputStream source, long start, long end) {
+		Entry e = new Entry();
+		e.font = true;
+		e.value = font;
+		e.size = sizeOf(font);
+		e.source = source;
+		e.start = start;
+		e.end = end;
+		this.fonts.add(e);
+		admit(e);
+	}
+
+	public synchronized int getFontCount() {
+		return this.fonts.size();
+	}
+
+	/*
+	 * font by definition order, from 0. decoded again if it was dropped.
+	 */
+	public synchronized FontProperties getFont(int index) {
+		return (FontProperties) get(this.fonts.get(index));
+	}
+
+	/*
+	 * remember the code page a font was mapped to
+	 */
+	public synchronized void setFontCodePage(int index, String codePageName) {
+		this.fonts.get(index).codePageName = codePageName;
+	}
+
+	/*
+	 * code page at BCP, its code points are added until endCodePage()
+	 */
+	public synchronized void addCodePage(CodePage codePage, MappedInputStream source, long start) {
+		Entry e = new Entry();
+		e.name = codePage.getName();
+		e.value = codePage;
+		e.source = source;
+		e.start = start;
+		e.end = -1;
+		Entry old = this.codePages.put(codePage.getName(), e);
+		if (old != null && this.resident.remove(old) != null) {
+			this.used -= old.size;
+		}
+		admit(e);
+	}
+
+	public synchronized void endCodePage(String name, long end) {
+		Entry e = this.codePages.get(name);
+		if (e == null || e.value == null) {
+			return;
+		}
+		long size = sizeOf((CodePage) e.value);
+		this.used += size - e.size;
+		e.size = size;
+		e.end = end;
+		evict(e);
+	}
+
+	public synchronized boolean hasCodePage(String name) {
+		return this.codePages.containsKey(name);
+	}
+
+	/*
+	 * code page by name, null when not defined. decoded again if it was dropped.
+	 */
+	public synchronized CodePage getCodePage(String name) {
+		Entry e = this.codePages.get(name);
+		return e == null ? null : (CodePage) get(e);
+	}
+
+	/*
+	 * start from the resources of another cache. fonts are copied, mapping them to a
+	 * code page changes their glyphs, code pages are shared. dropped entries stay dropped
+	 * and are decoded from the other cache's input when referenced.
+	 */
+	public void shareFrom(ResourceCache from) {
+		List<Entry> fonts = new ArrayList<Entry>();
+		List<Entry> codePages = new ArrayList<Entry>();
+		synchronized (from) {
+			for (Entry e : from.fonts) {
+				Entry c = copy(e);
+				if (e.value != null) {
+					c.value = ((FontProperties) e.value).copy();
+				}
+				c.codePageName = null;
+				fonts.add(c);
+			}
+			for (Entry e : from.codePages.values()) {
+				codePages.add(copy(e));
+			}
+		}
+		synchronized (this) {
+			for (Entry e : fonts) {
+				this.fonts.add(e);
+				if (e.value != null) {
+					admit(e);
+				}
+			}
+			for (Entry e : codePages) {
+				this.codePages.put(e.name, e);
+				if (e.value != null) {
+					admit(e);
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		this.fonts.clear();
+		this.codePages.clear();
+		this.resident.clear();
+		this.used = 0;
+	}
+
+	private Object get(Entry e) {
+		if (e.value != null) {
+			this.hits++;
+			this.metrics.addResourceHit();
+			// moves it to the most recently used end
+			this.resident.get(e);
+			return e.value;
+		}
+		this.misses++;
+		this.metrics.addResourceMiss();
+		try {
+			if (e.font) {
+				e.value = this.loader.loadFont(e.source, e.start, e.end, e.codePageName);
+			} else {
+				e.value = this.loader.loadCodePage(e.source, e.start, e.end);
+			}
+		} catch (AFPParserException ex) {
+			throw new IllegalStateException("Can not decode resource at " + e.start + " again", ex);
+		}
+		admit(e);
+		return e.value;
+	}
+
+	private void admit(Entry e) {
+		this.resident.put(e, e);
+		this.used += e.size;
+		evict(e);
+	}
+
+	/*
+	 * drop least recently used entries until within the budget, except keep
+	 */
+	private void evict(Entry keep) {
+		if (this.budget <= 0 || this.used <= this.budget) {
+			return;
+		}
+		Iterator<Entry> it = this.resident.keySet().iterator();
+		while (this.used > this.budget && it.hasNext()) {
+			Entry e = it.next();
+			if (e == keep || !e.isReloadable()) {
+				continue;
+			}
+			e.value = null;
+			this.used -= e.size;
+			it.remove();
+			this.evictions++;
+			this.metrics.addResourceEviction();
+		}
+	}
+
+	private static Entry copy(Entry e) {
+		Entry c = new Entry();
+		c.font = e.font;
+		c.name = e.name;
+		c.value = e.value;
+		c.codePageName = e.codePageName;
+		c.size = e.size;
+		c.source = e.source;
+		c.start = e.start;
+		c.end = e.end;
+		return c;
+	}
+
+	static long sizeOf(FontProperties font) {
+		long size = 0;
+		for (GlyphProperties g : font.getGlyphs().values()) {
+			size += GLYPH_OVERHEAD + (g.getData() != null ? g.getData().length : 0);
+		}
+		return size;
+	}
+
+	static long sizeOf(CodePage codePage) {
+		return (long) codePage.getCodePoints().size() * CODE_POINT_OVERHEAD;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+	/*
+	 * bytes of decoded fonts and code pages to keep, 0 keeps everything
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict(null);
+	}
+	public synchronized long getUsed() {
+		return used;
+	}
+	public synchronized long getHits() {
+		return hits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,231 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mgz.afp.base.StructuredField;
+import com.mgz.afp.base.StructuredFieldIntroducer;
+import com.mgz.afp.enums.SFTypeID;
+import com.mgz.afp.exceptions.AFPParserException;
+import com.mgz.afp.parser.AFPParser;
+import com.mgz.afp.parser.AFPParserConfiguration;
+
+/**
+ * font character sets and code pages in a font library directory, for print files that
+ * name them in MCF without including them. the directory is indexed once, a resource is
+ * decoded from its memory mapped file the first time it is referenced. decoded resources
+ * are shared by all parsers using the library, on any thread.
+ */
+public class ResourceLibrary {
+
+	// one library per directory in this process
+	private static final ConcurrentHashMap<File, ResourceLibrary> libraries = new ConcurrentHashMap<File, ResourceLibrary>();
+
+	/*
+	 * a BFN..EFN or BCP..ECP range of a library file
+	 */
+	public static class Resource {
+		String name;
+		File file;
+		long start;
+		long end;
+		// mapped and decoded on first use
+		MappedInputStream input;
+		Object decoded;
+
+		public String getName() {
+			return name;
+		}
+		public File getFile() {
+			return file;
+		}
+		public long getStart() {
+			return start;
+		}
+		public long getEnd() {
+			return end;
+		}
+	}
+
+	private File directory;
+	private Map<String, Resource> fonts = new HashMap<String, Resource>();
+	private Map<String, Resource> codePages = new HashMap<String, Resource>();
+
+	public ResourceLibrary(File directory) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("No resource library directory " + directory);
+		}
+		this.directory = directory;
+		this.index();
+	}
+
+	/*
+	 * the shared library of a directory, indexed on first use
+	 */
+	public static ResourceLibrary forDirectory(File directory) throws IOException {
+		File key = directory.getCanonicalFile();
+		ResourceLibrary library = libraries.get(key);
+		if (library == null) {
+			library = new ResourceLibrary(key);
+			ResourceLibrary raced = libraries.putIfAbsent(key, library);
+			if (raced != null) {
+				library = raced;
+			}
+		}
+		return library;
+	}
+
+	/*
+	 * BFN and BCP names of every AFP file in the directory, read shallow.
+	 * a resource is also found by its file name without extension.
+	 */
+	private void index() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!f.isFile() || f.length() == 0) {
+				continue;
+			}
+			try {
+				MappedInputStream input = new MappedInputStream(f);
+				try {
+					if (input.read() == 0x5A) {
+						input.setPosition(0);
+						index(f, input);
+					}
+				} finally {
+					input.close();
+				}
+			} catch (IOException | AFPParserException | RuntimeException e) {
+				System.err.println("Ignoring resource library file " + f + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void index(File file, MappedInputStream input) throws AFPParserException {
+		AFPParserConfiguration config = new AFPParserConfiguration();
+		config.setBufferSize(0);
+		config.setBuildShallow(true);
+		config.setParseToStructuredFieldsBaseData(true);
+		config.setInputStream(input);
+		AFPParser parser = new AFPParser(config);
+
+		String base = file.getName();
+		if (base.indexOf('.') > 0) {
+			base = base.substring(0, base.indexOf('.'));
+		}
+		base = base.toUpperCase();
+
+		Resource open = null;
+		StructuredField sf;
+		while ((sf = parser.parseNextSF()) != null) {
+			StructuredFieldIntroducer sfi = sf.getStructuredFieldIntroducer();
+			SFTypeID type = sfi.getSFTypeID();
+			if (type == SFTypeID.BFN_BeginFont || type == SFTypeID.BCP_BeginCodePage) {
+				open = new Resource();
+				open.name = name(input, config, sfi);
+				open.file = file;
+				open.start = sfi.getFileOffset();
+			} else if (open != null && (type == SFTypeID.EFN_EndFont || type == SFTypeID.ECP_EndCodePage)) {
+				open.end = sfi.getFileOffset() + 1 + sfi.getSFLength();
+				Map<String, Resource> names = type == SFTypeID.EFN_EndFont ? this.fonts : this.codePages;
+				if (!names.containsKey(open.name.toUpperCase())) {
+					names.put(open.name.toUpperCase(), open);
+				}
+				if (!names.containsKey(base)) {
+					names.put(base, open);
+				}
+				open = null;
+			}
+		}
+	}
+
+	/*
+	 * shallow fields are not decoded, the name is the first 8 bytes of the payload
+	 */
+	private static String name(MappedInputStream input, AFPParserConfiguration config, StructuredFieldIntroducer sfi) {
+		ByteBuffer name = input.slice(sfi.getFileOffset() + 1 + sfi.getLengthOfStructuredFieldIntroducerIncludingExtension(), 8);
+		return config.getAfpCharSet().decode(name).toString().trim();
+	}
+
+	public Resource findFont(String name) {
+		return name == null ? null : this.fonts.get(name.trim().toUpperCase());
+	}
+	public Resource findCodePage(String name) {
+		return name == null ? null : this.codePages.get(name.trim().toUpperCase());
+	}
+
+	/*
+	 * decoded font character set, shared. copy it before mapping it to a code page.
+	 */
+	public FontProperties getFont(Resource r) throws AFPParserException {
+		return (FontProperties) decode(r, true);
+	}
+	/*
+	 * decoded code page, shared
+	 */
+	public CodePage getCodePage(Resource r) throws AFPParserException {
+		return (CodePage) decode(r, false);
+	}
+
+	private Object decode(Resource r, boolean font) throws AFPParserException {
+		synchronized (r) {
+			if (r.decoded == null) {
+				BaseParser p = BaseParser.decodeResources(getInput(r), r.start, r.end, null);
+				r.decoded = font ? p.resources.getFont(0) : p.resources.getCodePage(p.currentCodePage);
+			}
+			return r.decoded;
+		}
+	}
+
+	/*
+	 * the mapped file of a resource, kept open once used so caches can decode it again
+	 */
+	public MappedInputStream getInput(Resource r) throws AFPParserException {
+		synchronized (r) {
+			if (r.input == null) {
+				try {
+					r.input = new MappedInputStream(r.file);
+				} catch (IOException e) {
+					throw new AFPParserException("Can not map resource library file " + r.file, e);
+				}
+			}
+			return r.input;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+	public int getFontCount() {
+		return fonts.size();
+	}
+	public int getCodePageCount() {
+		return codePages.size();
+	}
+}
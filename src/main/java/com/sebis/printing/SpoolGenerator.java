@@ -0,0 +1,793 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * write synthetic AFP spools of any size, for load and scaling tests.
+ *
+ * a resource group with code pages and raster fonts (300 dpi, 1 byte aligned) and a medium map,
+ * followed by a document of pages with presentation text, rules and IOCA bilevel images.
+ * the same settings and seed always give the same bytes.
+ */
+public class SpoolGenerator {
+
+	static final Charset EBCDIC = Charset.forName("Cp500");
+
+	// structured field type ids
+	static final int BRG = 0xD3A8C6;
+	static final int ERG = 0xD3A9C6;
+	static final int BCP = 0xD3A887;
+	static final int CPD = 0xD3A687;
+	static final int CPC = 0xD3A787;
+	static final int CPI = 0xD38C87;
+	static final int ECP = 0xD3A987;
+	static final int BFN = 0xD3A889;
+	static final int FND = 0xD3A689;
+	static final int FNC = 0xD3A789;
+	static final int FNP = 0xD3AC89;
+	static final int FNO = 0xD3AE89;
+	static final int FNI = 0xD38C89;
+	static final int FNM = 0xD3A289;
+	static final int FNG = 0xD3EE89;
+	static final int EFN = 0xD3A989;
+	static final int BMM = 0xD3A8CC;
+	static final int MDD = 0xD3A688;
+	static final int PGP = 0xD3ACAF;
+	static final int EMM = 0xD3A9CC;
+	static final int BDT = 0xD3A8A8;
+	static final int EDT = 0xD3A9A8;
+	static final int IMM = 0xD3ABCC;
+	static final int BNG = 0xD3A8AD;
+	static final int ENG = 0xD3A9AD;
+	static final int BPG = 0xD3A8AF;
+	static final int EPG = 0xD3A9AF;
+	static final int BAG = 0xD3A8C9;
+	static final int EAG = 0xD3A9C9;
+	static final int MCF = 0xD3AB8A;
+	static final int PGD = 0xD3A6AF;
+	static final int PTD = 0xD3B19B;
+	static final int BPT = 0xD3A89B;
+	static final int PTX = 0xD3EE9B;
+	static final int EPT = 0xD3A99B;
+	static final int BIM = 0xD3A8FB;
+	static final int OBD = 0xD3A66B;
+	static final int OBP = 0xD3AC6B;
+	static final int IDD = 0xD3A6FB;
+	static final int IPD = 0xD3EEFB;
+	static final int EIM = 0xD3A9FB;
+
+	// largest structured field payload, data beyond this is split over several fields
+	static final int MAX_PAYLOAD = 32752;
+
+	// 1440 units per inch for pages, 300 dpi for fonts and images
+	static final int PAGE_UNITS = 14400;
+	static final int PAGE_WIDTH = 8 * 1440 + 720;
+	static final int PAGE_HEIGHT = 11 * 1440;
+	static final int RASTER_UNITS = 3000;
+
+	// code points with a glyph in every font, EBCDIC letters, digits and punctuation
+	static final int[] CODE_POINTS = codePoints();
+
+	static final String[] WORDS = {"ACCOUNT", "BALANCE", "Statement", "period", "PAYMENT", "due", "Amount",
+			"1,234.56", "interest", "charged", "DEPOSIT", "withdrawal", "(continued)", "Total:", "0.00", "12/31/2019"};
+
+	int codePages = 1;
+	int fonts = 2;
+	int pages = 10;
+	int pagesPerGroup = 0; // BNG/ENG page groups, 0 for none
+	int linesPerPage = 50; // text density
+	int runsPerLine = 3;
+	float imagesPerPage = 0.25f; // image frequency, 0.25 is one page in four
+	int imageWidth = 600; // pels at 300 dpi
+	int imageHeight = 150;
+	int glyphWidth = 24; // character box in pels
+	int glyphHeight = 32;
+	long seed = 1;
+
+	private Random random;
+
+	/*
+	 * write resource group and document
+	 */
+	public void write(OutputStream out) throws IOException {
+		this.random = new Random(this.seed);
+
+		structuredField(out, BRG, name("RGGEN001"));
+		for (int i = 0; i < this.codePages; i++) {
+			writeCodePage(out, codePageName(i));
+		}
+		for (int i = 0; i < this.fonts; i++) {
+			writeFont(out, fontName(i), i);
+		}
+		writeMediumMap(out, "MMGEN001");
+		structuredField(out, ERG, name("RGGEN001"));
+
+		structuredField(out, BDT, name("DTGEN001"));
+		structuredField(out, IMM, name("MMGEN001"));
+		float images = 0;
+		for (int p = 0; p < this.pages; p++) {
+			if (this.pagesPerGroup > 0 && p % this.pagesPerGroup == 0) {
+				structuredField(out, BNG, name(groupName(p / this.pagesPerGroup)));
+			}
+			images += this.imagesPerPage;
+			int pageImages = (int) images;
+			images -= pageImages;
+			writePage(out, p, pageImages);
+			if (this.pagesPerGroup > 0 && (p % this.pagesPerGroup == this.pagesPerGroup - 1 || p == this.pages - 1)) {
+				structuredField(out, ENG, name(groupName(p / this.pagesPerGroup)));
+			}
+		}
+		structuredField(out, EDT, name("DTGEN001"));
+	}
+
+	static String codePageName(int i) {
+		return String.format("T1GEN%03d", i);
+	}
+	static String fontName(int i) {
+		return String.format("C0GEN%03d", i);
+	}
+	static String groupName(int i) {
+		return String.format("PG%06d", i);
+	}
+	static String gcgid(int codePoint) {
+		return String.format("GN0000%02X", codePoint);
+	}
+
+	/*
+	 * BCP/CPD/CPC/CPI/ECP, every code point in CODE_POINTS
+	 */
+	void writeCodePage(OutputStream out, String name) throws IOException {
+		structuredField(out, BCP, name(name));
+
+		Buffer cpd = new Buffer();
+		cpd.text(String.format("%-32s", "GENERATED CODE PAGE " + name));
+		cpd.put2(8); // GCGID length
+		cpd.put4(CODE_POINTS.length);
+		cpd.put2(697); // GCSGID
+		cpd.put2(500); // CPGID
+		structuredField(out, CPD, cpd.toByteArray());
+
+		Buffer cpc = new Buffer();
+		cpc.text(gcgid(0x40)); // default character, space
+		cpc.put1(0x00); // print flags
+		cpc.put1(10); // CPI repeating group length
+		cpc.put1(0x00);
+		cpc.put1(0x40); // space character code point
+		cpc.put1(0x00);
+		structuredField(out, CPC, cpc.toByteArray());
+
+		Buffer cpi = new Buffer();
+		for (int cp : CODE_POINTS) {
+			cpi.text(gcgid(cp));
+			cpi.put1(0x00);
+			cpi.put1(cp);
+		}
+		structuredField(out, CPI, cpi.toByteArray());
+
+		structuredField(out, ECP, name(name));
+	}
+
+	/*
+	 * BFN/FND/FNC/FNP/FNO/FNI/FNM/FNG/EFN, a raster character set with a glyph per code point
+	 */
+	void writeFont(OutputStream out, String name, int index) throws IOException {
+		int nominalSize = 80 + 20 * (index % 3); // decipoints
+		int boxWidth = this.glyphWidth;
+		int boxHeight = this.glyphHeight;
+		int rowBytes = (boxWidth + 7) / 8;
+		int patternSize = rowBytes * boxHeight;
+		int patterns = patternSize * CODE_POINTS.length;
+
+		structuredField(out, BFN, name(name));
+
+		Buffer fnd = new Buffer();
+		fnd.text(String.format("%-32s", "GENERATED RASTER " + name));
+		fnd.put1(5); // weight class, medium
+		fnd.put1(5); // width class, medium
+		fnd.put2(nominalSize);
+		fnd.put2(nominalSize);
+		fnd.put2(nominalSize);
+		fnd.put2(0);
+		fnd.put2(0);
+		fnd.put2(0);
+		fnd.put1(0);
+		fnd.put1(0);
+		fnd.put1(0);
+		fnd.zeros(15);
+		fnd.put2(0); // flags
+		fnd.zeros(10);
+		fnd.put2(697); // GCSGID
+		fnd.put2(0); // FGID
+		structuredField(out, FND, fnd.toByteArray());
+
+		Buffer fnc = new Buffer();
+		fnc.put1(0x01);
+		fnc.put1(0x05); // laser matrix N-bit wide
+		fnc.put1(0x00);
+		fnc.put1(0x00); // flags
+		fnc.put1(0x00); // 10 inches
+		fnc.put1(0x00);
+		fnc.put2(RASTER_UNITS);
+		fnc.put2(RASTER_UNITS);
+		fnc.put2(boxWidth);
+		fnc.put2(boxHeight);
+		fnc.put1(26); // FNO group length
+		fnc.put1(28); // FNI group length
+		fnc.put1(0x00); // 1 byte alignment
+		fnc.put3(patterns);
+		fnc.put1(22); // FNP group length
+		fnc.put1(8); // FNM group length
+		fnc.put1(0x00);
+		fnc.put1(0x00);
+		fnc.put2(RASTER_UNITS);
+		fnc.put2(RASTER_UNITS);
+		fnc.put4(0); // outline pattern data
+		fnc.zeros(3);
+		fnc.put1(0); // FNN group length
+		fnc.put4(0);
+		fnc.put2(0);
+		structuredField(out, FNC, fnc.toByteArray());
+
+		// metrics in 1/1000 em, ascender three quarters of the box
+		int ascender = 750;
+		int descender = 250;
+		int advance = boxWidth * 1000 / boxHeight + 100;
+
+		Buffer fnp = new Buffer();
+		fnp.put2(0);
+		fnp.put2(ascender * 2 / 3); // lowercase height
+		fnp.put2(ascender); // cap M height
+		fnp.put2(ascender);
+		fnp.put2(descender);
+		fnp.zeros(5);
+		fnp.put1(0x01);
+		fnp.put1(0x00);
+		fnp.put2(50); // underscore width
+		fnp.put1(0);
+		fnp.put2(100); // underscore position
+		structuredField(out, FNP, fnp.toByteArray());
+
+		Buffer fno = new Buffer();
+		fno.put2(0);
+		fno.put2(0x0000); // 0 degrees
+		fno.put2(ascender);
+		fno.put2(advance);
+		fno.put2(advance); // space
+		fno.put2(descender);
+		fno.put1(0x00);
+		fno.put1(0x00);
+		fno.put2(1000); // em space
+		fno.put2(0);
+		fno.put2(advance); // figure space
+		fno.put2(advance);
+		fno.put2(1200); // baseline increment
+		fno.put2(0);
+		structuredField(out, FNO, fno.toByteArray());
+
+		Buffer fni = new Buffer();
+		for (int i = 0; i < CODE_POINTS.length; i++) {
+			fni.text(gcgid(CODE_POINTS[i]));
+			fni.put2(advance);
+			fni.put2(ascender);
+			fni.put2(descender);
+			fni.put2(0);
+			fni.put2(i); // pattern map index
+			fni.put2(50); // A space
+			fni.put2(advance - 100); // B space
+			fni.put2(50); // C space
+			fni.put2(0);
+			fni.put2(ascender);
+		}
+		structuredField(out, FNI, fni.toByteArray());
+
+		Buffer fnm = new Buffer();
+		for (int i = 0; i < CODE_POINTS.length; i++) {
+			fnm.put2(boxWidth - 1);
+			fnm.put2(boxHeight - 1);
+			fnm.put4(i * patternSize);
+		}
+		structuredField(out, FNM, fnm.toByteArray());
+
+		Buffer fng = new Buffer();
+		for (int i = 0; i < CODE_POINTS.length; i++) {
+			glyphPattern(fng, CODE_POINTS[i], index, boxWidth, boxHeight);
+		}
+		structuredFields(out, FNG, fng.toByteArray());
+
+		structuredField(out, EFN, name(name));
+	}
+
+	/*
+	 * a framed box with rows set from the code point bits, recognizably different per glyph
+	 */
+	private static void glyphPattern(Buffer out, int codePoint, int font, int width, int height) {
+		int rowBytes = (width + 7) / 8;
+		for (int y = 0; y < height; y++) {
+			long row = 0;
+			for (int x = 0; x < width; x++) {
+				boolean set = x == 0 || x == width - 1 || y == 0 || y == height - 1
+						|| ((codePoint + font) >> ((x + y) % 8) & 1) != 0 && (x + y) % 3 == 0;
+				if (set) {
+					row |= 1L << (rowBytes * 8 - 1 - x);
+				}
+			}
+			for (int b = rowBytes - 1; b >= 0; b--) {
+				out.put1((int) (row >> (8 * b)));
+			}
+		}
+	}
+
+	/*
+	 * BMM/MDD/PGP/EMM, letter size with the page at a quarter inch offset
+	 */
+	void writeMediumMap(OutputStream out, String name) throws IOException {
+		structuredField(out, BMM, name(name));
+
+		Buffer mdd = new Buffer();
+		mdd.put1(0x00);
+		mdd.put1(0x00);
+		mdd.put2(PAGE_UNITS);
+		mdd.put2(PAGE_UNITS);
+		mdd.put3(PAGE_WIDTH);
+		mdd.put3(PAGE_HEIGHT);
+		mdd.put1(0x00);
+		structuredField(out, MDD, mdd.toByteArray());
+
+		Buffer pgp = new Buffer();
+		pgp.put3(360);
+		pgp.put3(360);
+		structuredField(out, PGP, pgp.toByteArray());
+
+		structuredField(out, EMM, name(name));
+	}
+
+	/*
+	 * BPG, active environment, text object, images, EPG
+	 */
+	void writePage(OutputStream out, int page, int images) throws IOException {
+		String name = String.format("PG%06d", page);
+		structuredField(out, BPG, name(name));
+
+		structuredField(out, BAG, new byte[0]);
+		writeMapCodedFont(out);
+		Buffer pgd = new Buffer();
+		pgd.put1(0x00);
+		pgd.put1(0x00);
+		pgd.put2(PAGE_UNITS);
+		pgd.put2(PAGE_UNITS);
+		pgd.put3(PAGE_WIDTH - 720);
+		pgd.put3(PAGE_HEIGHT - 720);
+		pgd.zeros(3);
+		structuredField(out, PGD, pgd.toByteArray());
+		Buffer ptd = new Buffer();
+		ptd.put1(0x00);
+		ptd.put1(0x00);
+		ptd.put2(PAGE_UNITS);
+		ptd.put2(PAGE_UNITS);
+		ptd.put3(PAGE_WIDTH - 720);
+		ptd.put3(PAGE_HEIGHT - 720);
+		ptd.put2(0);
+		structuredField(out, PTD, ptd.toByteArray());
+		structuredField(out, EAG, new byte[0]);
+
+		structuredField(out, BPT, name("PT000001"));
+		for (byte[] ptx : presentationText()) {
+			structuredField(out, PTX, ptx);
+		}
+		structuredField(out, EPT, name("PT000001"));
+
+		for (int i = 0; i < images; i++) {
+			int x = 720 + this.random.nextInt(PAGE_WIDTH / 2);
+			int y = 720 + this.random.nextInt(PAGE_HEIGHT - 2880);
+			writeImage(out, String.format("IM%06d", i), x, y);
+		}
+
+		structuredField(out, EPG, name(name));
+	}
+
+	/*
+	 * MCF format 2, one group per font: local id, code page and character set names
+	 */
+	void writeMapCodedFont(OutputStream out) throws IOException {
+		Buffer mcf = new Buffer();
+		for (int i = 0; i < this.fonts; i++) {
+			mcf.put2(2 + 12 + 12 + 5);
+			// fully qualified names, code page and font character set
+			mcf.put1(12);
+			mcf.put1(0x02);
+			mcf.put1(0x85);
+			mcf.put1(0x00);
+			mcf.text(codePageName(i % this.codePages));
+			mcf.put1(12);
+			mcf.put1(0x02);
+			mcf.put1(0x86);
+			mcf.put1(0x00);
+			mcf.text(fontName(i));
+			// resource local id
+			mcf.put1(5);
+			mcf.put1(0x24);
+			mcf.put1(0x05);
+			mcf.put2(i + 1);
+		}
+		structuredField(out, MCF, mcf.toByteArray());
+	}
+
+	/*
+	 * PTX control sequences for one page: a chain per line with rules between sections
+	 */
+	List<byte[]> presentationText() {
+		List<byte[]> fields = new ArrayList<byte[]>();
+		Buffer ptx = new Buffer();
+
+		int lineHeight = (PAGE_HEIGHT - 2880) / Math.max(1, this.linesPerPage);
+		for (int l = 0; l < this.linesPerPage; l++) {
+			Buffer line = new Buffer();
+			int baseline = 1440 + l * lineHeight;
+			int inline = 720;
+			line.put1(0x2B);
+			line.put1(0xD3);
+			controlSequence(line, 0xD3, baseline, 2); // AMB
+
+			if (l % 10 == 0) {
+				// section rule across the page and a short vertical one
+				controlSequence(line, 0xC7, inline, 2); // AMI
+				controlSequence(line, 0xE5, PAGE_WIDTH - 2160, 2, 0x000A00); // DIR
+				controlSequence(line, 0xE7, lineHeight / 2, 2, 0x000A00); // DBR
+			}
+
+			for (int r = 0; r < this.runsPerLine; r++) {
+				int font = 1 + this.random.nextInt(this.fonts);
+				controlSequence(line, 0xC7, inline, 2); // AMI
+				controlSequence(line, 0xF1, font, 1); // SCFL
+				// STC: mostly black, now and then blue or red
+				int color = this.random.nextInt(10) == 0 ? 1 + this.random.nextInt(2) : 0x0008;
+				controlSequence(line, 0x75, color, 2);
+				String text = WORDS[this.random.nextInt(WORDS.length)] + " " + WORDS[this.random.nextInt(WORDS.length)];
+				byte[] data = text.getBytes(EBCDIC);
+				// the last run ends the chain
+				line.put1(2 + data.length);
+				line.put1(r == this.runsPerLine - 1 ? 0xDA : 0xDB);
+				line.put(data);
+				inline += text.length() * 120 + 360;
+			}
+			if (this.runsPerLine == 0) {
+				controlSequence(line, 0xF8, 0, 0); // NOP ends the chain
+			}
+
+			if (ptx.size() + line.size() > MAX_PAYLOAD) {
+				fields.add(ptx.toByteArray());
+				ptx = new Buffer();
+			}
+			ptx.put(line.toByteArray());
+		}
+		if (ptx.size() > 0) {
+			fields.add(ptx.toByteArray());
+		}
+		return fields;
+	}
+
+	/*
+	 * BIM/OBD/OBP/IDD/IPD/EIM, uncompressed bilevel image positioned on the page
+	 */
+	void writeImage(OutputStream out, String name, int x, int y) throws IOException {
+		int width = this.imageWidth;
+		int height = this.imageHeight;
+
+		structuredField(out, BIM, name(name));
+
+		Buffer obd = new Buffer();
+		obd.put1(3);
+		obd.put1(0x43); // descriptor position
+		obd.put1(0x01);
+		obd.put1(8);
+		obd.put1(0x4B); // measurement units
+		obd.put1(0x00);
+		obd.put1(0x00);
+		obd.put2(PAGE_UNITS);
+		obd.put2(PAGE_UNITS);
+		obd.put1(9);
+		obd.put1(0x4C); // object area size
+		obd.put1(0x02);
+		obd.put3(width * 1440 / 300);
+		obd.put3(height * 1440 / 300);
+		structuredField(out, OBD, obd.toByteArray());
+
+		Buffer obp = new Buffer();
+		obp.put1(0x01);
+		obp.put1(23);
+		obp.put3(x);
+		obp.put3(y);
+		obp.put2(0x0000);
+		obp.put2(0x2D00);
+		obp.put1(0x00);
+		obp.put3(0);
+		obp.put3(0);
+		obp.put2(0x0000);
+		obp.put2(0x2D00);
+		obp.put1(0x00);
+		structuredField(out, OBP, obp.toByteArray());
+
+		Buffer idd = new Buffer();
+		idd.put1(0x00); // 10 inches
+		idd.put2(RASTER_UNITS);
+		idd.put2(RASTER_UNITS);
+		idd.put2(width);
+		idd.put2(height);
+		// set bilevel image color, black
+		idd.put1(0xF6);
+		idd.put1(4);
+		idd.put1(0x01);
+		idd.put1(0x00);
+		idd.put2(0x0008);
+		structuredField(out, IDD, idd.toByteArray());
+
+		Buffer ipd = new Buffer();
+		ipd.put1(0x70); // begin segment
+		ipd.put1(0x00);
+		ipd.put1(0x91); // begin image content
+		ipd.put1(0x01);
+		ipd.put1(0xFF);
+		ipd.put1(0x94); // image size
+		ipd.put1(0x09);
+		ipd.put1(0x00);
+		ipd.put2(RASTER_UNITS);
+		ipd.put2(RASTER_UNITS);
+		ipd.put2(width);
+		ipd.put2(height);
+		ipd.put1(0x95); // image encoding, no compression, RIDIC
+		ipd.put1(0x02);
+		ipd.put1(0x03);
+		ipd.put1(0x01);
+		ipd.put1(0x96); // 1 bit per element
+		ipd.put1(0x01);
+		ipd.put1(0x01);
+
+		byte[] data = imageData(width, height);
+		for (int off = 0; off < data.length; off += 0xFFFF) {
+			int len = Math.min(0xFFFF, data.length - off);
+			ipd.put1(0xFE);
+			ipd.put1(0x92);
+			ipd.put2(len);
+			ipd.write(data, off, len);
+		}
+
+		ipd.put1(0x93); // end image content
+		ipd.put1(0x00);
+		ipd.put1(0x71); // end segment
+		ipd.put1(0x00);
+		structuredFields(out, IPD, ipd.toByteArray());
+
+		structuredField(out, EIM, name(name));
+	}
+
+	/*
+	 * rows of short horizontal strokes, like a scanned signature or form
+	 */
+	byte[] imageData(int width, int height) {
+		int rowBytes = (width + 7) / 8;
+		byte[] data = new byte[rowBytes * height];
+		for (int y = 0; y < height; y++) {
+			if (y % 12 > 3) {
+				continue;
+			}
+			int x = this.random.nextInt(rowBytes);
+			int run = this.random.nextInt(rowBytes - x);
+			for (int i = 0; i < run; i++) {
+				data[y * rowBytes + x + i] = (byte) 0xFF;
+			}
+		}
+		return data;
+	}
+
+	static void controlSequence(Buffer out, int function, int value, int size) {
+		out.put1(2 + size);
+		out.put1(function);
+		for (int i = size - 1; i >= 0; i--) {
+			out.put1(value >> (8 * i));
+		}
+	}
+	// rules: length and 3 byte width
+	static void controlSequence(Buffer out, int function, int length, int size, int width) {
+		out.put1(2 + size + 3);
+		out.put1(function);
+		out.put2(length);
+		out.put3(width);
+	}
+
+	static byte[] name(String name) {
+		return String.format("%-8s", name).getBytes(EBCDIC);
+	}
+
+	/*
+	 * 0x5A, length, type id, flags, reserved (2), payload
+	 */
+	static void structuredField(OutputStream out, int type, byte[] payload) throws IOException {
+		structuredField(out, type, payload, 0, payload.length);
+	}
+	static void structuredField(OutputStream out, int type, byte[] payload, int off, int len) throws IOException {
+		int length = 8 + len;
+		out.write(0x5A);
+		out.write(length >> 8);
+		out.write(length);
+		out.write(type >> 16);
+		out.write(type >> 8);
+		out.write(type);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(payload, off, len);
+	}
+	// data too large for one field, split over as many as needed
+	static void structuredFields(OutputStream out, int type, byte[] payload) throws IOException {
+		for (int off = 0; off < payload.length; off += MAX_PAYLOAD) {
+			structuredField(out, type, payload, off, Math.min(MAX_PAYLOAD, payload.length - off));
+		}
+	}
+
+	/*
+	 * printable code points in EBCDIC 500: space, punctuation, letters, digits
+	 */
+	private static int[] codePoints() {
+		String chars = " .<(+|&!$*);-/,%_>?:#@'=\"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+		byte[] b = chars.getBytes(EBCDIC);
+		int[] cps = new int[b.length];
+		for (int i = 0; i < b.length; i++) {
+			cps[i] = b[i] & 0xFF;
+		}
+		return cps;
+	}
+
+	/*
+	 * big endian fields
+	 */
+	static class Buffer extends ByteArrayOutputStream {
+		void put1(int v) {
+			write(v);
+		}
+		void put2(int v) {
+			write(v >> 8);
+			write(v);
+		}
+		void put3(int v) {
+			write(v >> 16);
+			write(v >> 8);
+			write(v);
+		}
+		void put4(int v) {
+			write(v >> 24);
+			write(v >> 16);
+			write(v >> 8);
+			write(v);
+		}
+		void put(byte[] b) {
+			write(b, 0, b.length);
+		}
+		void zeros(int n) {
+			for (int i = 0; i < n; i++) {
+				write(0);
+			}
+		}
+		void text(String s) {
+			put(s.getBytes(EBCDIC));
+		}
+	}
+
+	public int getCodePages() {
+		return codePages;
+	}
+	public void setCodePages(int codePages) {
+		this.codePages = codePages;
+	}
+	public int getFonts() {
+		return fonts;
+	}
+	public void setFonts(int fonts) {
+		this.fonts = fonts;
+	}
+	public int getPages() {
+		return pages;
+	}
+	public void setPages(int pages) {
+		this.pages = pages;
+	}
+	public int getPagesPerGroup() {
+		return pagesPerGroup;
+	}
+	public void setPagesPerGroup(int pagesPerGroup) {
+		this.pagesPerGroup = pagesPerGroup;
+	}
+	public int getLinesPerPage() {
+		return linesPerPage;
+	}
+	public void setLinesPerPage(int linesPerPage) {
+		this.linesPerPage = linesPerPage;
+	}
+	public int getRunsPerLine() {
+		return runsPerLine;
+	}
+	public void setRunsPerLine(int runsPerLine) {
+		this.runsPerLine = runsPerLine;
+	}
+	public float getImagesPerPage() {
+		return imagesPerPage;
+	}
+	public void setImagesPerPage(float imagesPerPage) {
+		this.imagesPerPage = imagesPerPage;
+	}
+	public int getImageWidth() {
+		return imageWidth;
+	}
+	public void setImageWidth(int imageWidth) {
+		this.imageWidth = imageWidth;
+	}
+	public int getImageHeight() {
+		return imageHeight;
+	}
+	public void setImageHeight(int imageHeight) {
+		this.imageHeight = imageHeight;
+	}
+	public long getSeed() {
+		return seed;
+	}
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public static void main(String[] argv) {
+
+		if (argv.length < 2 || argv.length > 6) {
+			System.err.println("Provide output file and page count, optionally lines per page, images per page, number of fonts and pages per group.");
+			System.exit(5);
+		}
+
+		SpoolGenerator generator = new SpoolGenerator();
+		generator.setPages(Integer.parseInt(argv[1]));
+		if (argv.length > 2) {
+			generator.setLinesPerPage(Integer.parseInt(argv[2]));
+		}
+		if (argv.length > 3) {
+			generator.setImagesPerPage(Float.parseFloat(argv[3]));
+		}
+		if (argv.length > 4) {
+			generator.setFonts(Integer.parseInt(argv[4]));
+			generator.setCodePages(Integer.parseInt(argv[4]));
+		}
+		if (argv.length > 5) {
+			generator.setPagesPerGroup(Integer.parseInt(argv[5]));
+		}
+
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(argv[0]), 1 << 16);
+			generator.write(out);
+			out.close();
+		} catch (IOException e) {
+			System.err.println("Problem with output file " + argv[0]);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
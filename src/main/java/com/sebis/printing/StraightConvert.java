@@ -16,15 +16,31 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
 package com.sebis.printing;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.mgz.afp.enums.AFPColorValue;
 import com.mgz.afp.exceptions.AFPParserException;
 import com.mgz.afp.foca.EFN_EndFont;
 import com.mgz.afp.ioca.ImageObject;
+import com.mgz.afp.modca.BNG_BeginNamedPageGroup;
 import com.mgz.afp.modca.BPG_BeginPage;
 import com.mgz.afp.modca.EIM_EndImageObject;
+import com.mgz.afp.modca.ENG_EndNamedPageGroup;
 import com.mgz.afp.modca.EPG_EndPage;
 import com.mgz.afp.modca.MCF_MapCodedFont_Format2;
 import com.mgz.afp.ptoca.PTX_PresentationTextData;
@@ -42,6 +58,26 @@ public class StraightConvert extends BaseParser {
 	int textTop = 0;
 
 	int[] rgb = new int[] {0,0,0};
+	
+	ImageEncoder.Compression imageCompression = ImageEncoder.Compression.G4;
+	// output buffers queued for the writer thread, 0 writes on the render thread
+	int writerDepth = 0;
+	
+	// one PDF per outermost BNG/ENG page group in this directory, null for a single document
+	File splitDirectory;
+	// threads closing finished group documents
+	int splitWriters = 2;
+	private ExecutorService groupWriters;
+	private List<Future<?>> groupCloses = new ArrayList<Future<?>>();
+	// files in the order their documents were closed
+	private List<String> groupFiles = new ArrayList<String>();
+	private Map<OutputDocument, String> groupPaths = new HashMap<OutputDocument, String>();
+	private Set<String> groupNames = new HashSet<String>();
+	private int groupDepth = 0;
+	// outermost group being read, its document is started at its first page
+	private String groupName;
+	// pages outside groups, one document kept open between groups
+	private OutputDocument ungrouped;
 
 	public StraightConvert() {}
 	public StraightConvert(String inputFilename) throws IOException {
@@ -51,23 +87,140 @@ public class StraightConvert extends BaseParser {
 		super.setInputParser(inputFilename);
 	}
 	public void setOutputDocument(String outputFilename) throws FileNotFoundException {
-		this.pdfOut = new OutputDocument(outputFilename);
+		if (this.writerDepth > 0) {
+			// file writes on their own thread
+			this.pdfOut = new OutputDocument(new AsyncOutputStream(new FileOutputStream(outputFilename), this.writerDepth));
+		} else {
+			this.pdfOut = new OutputDocument(outputFilename);
+		}
+		this.pdfOut.setImageCompression(this.imageCompression);
+	}
+	/*
+	 * write each page group to its own PDF in outputDirectory, named after the group.
+	 * pages outside groups go to "ungrouped".
+	 */
+	public void setOutputDirectory(String outputDirectory) throws IOException {
+		this.splitDirectory = new File(outputDirectory);
+		if (!this.splitDirectory.isDirectory() && !this.splitDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + outputDirectory);
+		}
+		// a full queue closes on the parsing thread, that holds back parsing instead of memory
+		this.groupWriters = new ThreadPoolExecutor(this.splitWriters, this.splitWriters, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.splitWriters * 2), new ThreadPoolExecutor.CallerRunsPolicy());
 	}
 	// close input and output
 	public void closeAll() throws IOException {
 		super.close();
-		this.pdfOut.close();
+		if (this.splitDirectory == null) {
+			this.pdfOut.close();
+			return;
+		}
+		
+		if (this.pdfOut != null && this.pdfOut != this.ungrouped) {
+			this.finishGroup();
+		}
+		if (this.ungrouped != null) {
+			this.pdfOut = this.ungrouped;
+			this.finishGroup();
+		}
+		this.groupWriters.shutdown();
+		int failed = 0;
+		for (int i = 0; i < this.groupCloses.size(); i++) {
+			try {
+				this.groupCloses.get(i).get();
+			} catch (ExecutionException e) {
+				failed += 1;
+				System.err.println("Failed to write " + this.groupFiles.get(i));
+				e.getCause().printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for group documents", e);
+			}
+		}
+		if (failed > 0) {
+			throw new IOException(failed + " of " + this.groupCloses.size() + " group documents not written");
+		}
+	}
+	
+	/*
+	 * new document for a group, with the fonts mapped so far
+	 */
+	private void startGroup(String name) throws FileNotFoundException {
+		
+		// group names are 8 EBCDIC characters, keep them file name safe and unique
+		String base = name.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+		if (base.isEmpty()) {
+			base = "group";
+		}
+		String fileName = base;
+		for (int n = 2; !this.groupNames.add(fileName); n++) {
+			fileName = base + "-" + n;
+		}
+		String path = new File(this.splitDirectory, fileName + ".pdf").getPath();
+		
+		this.setOutputDocument(path);
+		this.groupPaths.put(this.pdfOut, path);
+		if (super.fontsMapped) {
+			this.addMappedFonts();
+		}
+	}
+	
+	/*
+	 * hand the group's document to a writer thread, nothing else touches it after this.
+	 * its pages were kept unflushed, the writer compresses and writes them.
+	 */
+	private void finishGroup() {
+		final OutputDocument doc = this.pdfOut;
+		this.pdfOut = null;
+		this.groupFiles.add(this.groupPaths.remove(doc));
+		this.groupCloses.add(this.groupWriters.submit(doc::close));
+	}
+	
+	@Override
+	public void handleBNG_BeginNamedPageGroup(BNG_BeginNamedPageGroup sf) {
+		super.handleBNG_BeginNamedPageGroup(sf);
+		if (this.splitDirectory != null && this.groupDepth++ == 0) {
+			// no document until a page is written, empty or unselected groups leave no file
+			this.groupName = sf.getName();
+			this.pdfOut = null;
+		}
+	}
+	@Override
+	public void handleENG_EndNamedPageGroup(ENG_EndNamedPageGroup sf) {
+		super.handleENG_EndNamedPageGroup(sf);
+		if (this.splitDirectory != null && this.groupDepth > 0 && --this.groupDepth == 0) {
+			if (this.pdfOut != null) {
+				this.finishGroup();
+			}
+			this.groupName = null;
+			this.pdfOut = this.ungrouped;
+		}
 	}
 	
 	@Override
 	public void handleBPG_BeginPage(BPG_BeginPage sf) {
 		super.handleBPG_BeginPage(sf);
-		//this.pdfOut.addPage();
+		if (this.pdfOut == null && this.groupDepth > 0) {
+			try {
+				this.startGroup(this.groupName);
+			} catch (FileNotFoundException e) {
+				throw new IllegalStateException("Cannot write group " + this.groupName, e);
+			}
+			this.pdfOut.setFlushPagesOnClose(true);
+		} else if (this.pdfOut == null) {
+			try {
+				this.startGroup("ungrouped");
+			} catch (FileNotFoundException e) {
+				throw new IllegalStateException("Cannot write ungrouped pages", e);
+			}
+			this.ungrouped = this.pdfOut;
+		}
+		this.pdfOut.addPage();
 	}
 	@Override
 	public void handleEPG_EndPage(EPG_EndPage sf) {
 		super.handleEPG_EndPage(sf);
-		this.pdfOut.addPageBreak();
+		this.pdfOut.endPage();
 	}
 	@Override
 	public void handleEFN_EndFont(EFN_EndFont sf) {
@@ -78,9 +231,19 @@ public class StraightConvert extends BaseParser {
 	public void handleMCF_MapCodedFont_Format2(MCF_MapCodedFont_Format2 sf) {
 		super.handleMCF_MapCodedFont_Format2(sf);
 
-		// add all fonts after they are mapped
-		for (FontProperties font : super.fonts){ 
-			this.pdfOut.addRasterFont(font);
+		this.addMappedFonts();
+	}
+	/*
+	 * add fonts after they are mapped, MCF repeats on every page. only the index is
+	 * handed over, fonts are not decoded until text uses them.
+	 */
+	private void addMappedFonts() {
+		if (this.pdfOut == null) {
+			return;
+		}
+		// a document kept open across groups catches up from where it stopped
+		for (int i = this.pdfOut.getFontCount(); i < super.resources.getFontCount(); i++) {
+			this.pdfOut.addRasterFont(super.resources, i);
 		}
 	}
 	@Override
@@ -127,7 +290,7 @@ public class StraightConvert extends BaseParser {
 				float length = dir.getLength() / 20;
 				float width = dir.getWidth() / 20;
 
-				this.pdfOut.drawRule(left, top, left + length, top, width);
+				this.pdfOut.drawRule(left, top, left + length, top, width, rgb);
 			}
 			if (s instanceof DBR_DrawBaxisRule) {
 				DBR_DrawBaxisRule dir = (DBR_DrawBaxisRule)s;
@@ -137,36 +300,157 @@ public class StraightConvert extends BaseParser {
 				float length = dir.getLength() / 20;
 				float width = dir.getWidth() / 20f;
 				
-				this.pdfOut.drawRule(left, top, left, top + length, width);
+				this.pdfOut.drawRule(left, top, left, top + length, width, rgb);
 			}
 
 			if (s instanceof TRN_TransparentData) {
 				TRN_TransparentData td = (TRN_TransparentData)s;
-				textData = td.getTransparentData();
+				byte[] ebcdic = td.getTransparentDataEBCDIC();
+				if (ebcdic == null) {
+					continue;
+				}
 
 				// input units 1/1440", output 1/72"
 				float top = textTop / 20;
 				float left = textLeft / 20;
 				
-				// to measure from bottom, need to shift line down by max descender, 1/1000 to 1/72
-				FontProperties font = this.fonts.get(fontIdx-1);
-				float fontShift = (font.getMaxDescender()/500f) * (font.getNominalSize()) ;
-			
-				this.pdfOut.addText(textData, fontIdx, fontShift, left, top, rgb);
+				// glyph origin sits max descender below the baseline, 1/1000 to 1/72
+				FontProperties font = this.resources.getFont(fontIdx-1);
+				float fontShift = (font.getMaxDescender()/1000f) * (font.getNominalSize()) ;
+				
+				// glyphs are looked up by code point, the text is not decoded
+				this.pdfOut.addText(ebcdic, 0, ebcdic.length, fontIdx, fontShift, left, top, rgb);
 
-				//System.out.println(String.format("%d (%d,%d) %s", fontIdx, textLeft, textTop, textData));
+				//System.out.println(String.format("%d (%d,%d) %d bytes", fontIdx, textLeft, textTop, ebcdic.length));
 			}
 		}
 	}
 	
 	protected void handleEIM_EndImageObject(EIM_EndImageObject sf) {
 		super.handleEIM_EndImageObject(sf);
-		ImageObject img = super.config.getCurrentImageObject();
+		ImageObject img = super.currentImageObject();
 		
 		// input units 1/1440", output 1/72"
 		float x = (img.getXOrigin() + super.getPagexOffset()) / 20;
 		float y = (img.getYOrigin() + super.getPageyOffset()) / 20;
-		this.pdfOut.addRawImage(BaseParser.flipBits(img.getImageData()), img.getWidth(), img.getHeight(), x, y);
+		// the image object is replaced at the next BIM, invert its data in place
+		this.pdfOut.addRawImage(BilevelRaster.invert(img.getImageData()), img.getWidth(), img.getHeight(), x, y);
+	}
+
+	/*
+	 * options passed as system properties
+	 */
+	public void applyOptions() {
+		String fontCacheDir = System.getProperty("afpdf.fontCache");
+		if (fontCacheDir != null) {
+			try {
+				this.setFontCache(new FontCache(new File(fontCacheDir)));
+			} catch (IOException e) {
+				System.err.println("Font cache disabled: " + e.getMessage());
+			}
+		}
+		String libraryDir = System.getProperty("afpdf.resourceLibrary");
+		if (libraryDir != null) {
+			try {
+				this.setResourceLibrary(ResourceLibrary.forDirectory(new File(libraryDir)));
+			} catch (IOException e) {
+				System.err.println("Resource library disabled: " + e.getMessage());
+			}
+		}
+		String compression = System.getProperty("afpdf.imageCompression");
+		if (compression != null) {
+			try {
+				this.setImageCompression(ImageEncoder.Compression.valueOf(compression.toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown image compression " + compression + ", using " + this.imageCompression);
+			}
+		}
+		String select = System.getProperty("afpdf.select");
+		if (select != null) {
+			try {
+				this.setPageSelection(parsePageSelection(select));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage() + ", converting all pages");
+			}
+		}
+		this.setResourceBudget(Long.getLong("afpdf.resourceBudget", 0) * 1024 * 1024);
+		this.setDirectPatterns(Boolean.getBoolean("afpdf.directPatterns"));
+		this.setDumpFonts(Boolean.getBoolean("afpdf.dumpFonts"));
+		this.setPipelineDepth(Integer.getInteger("afpdf.pipeline", this.pipelineDepth));
+		this.setWriterDepth(Integer.getInteger("afpdf.pipelineWriter", this.writerDepth));
+		this.setSplitWriters(Integer.getInteger("afpdf.splitWriters", this.splitWriters));
+	}
+	
+	public int getSplitWriters() {
+		return splitWriters;
+	}
+	/*
+	 * threads closing group documents, takes effect at setOutputDirectory()
+	 */
+	public void setSplitWriters(int splitWriters) {
+		this.splitWriters = Math.max(1, splitWriters);
+	}
+	public int getWriterDepth() {
+		return writerDepth;
+	}
+	public void setWriterDepth(int writerDepth) {
+		this.writerDepth = writerDepth;
+	}
+	
+	public ImageEncoder.Compression getImageCompression() {
+		return imageCompression;
+	}
+	public void setImageCompression(ImageEncoder.Compression imageCompression) {
+		this.imageCompression = imageCompression;
+		if (this.pdfOut != null) {
+			this.pdfOut.setImageCompression(imageCompression);
+		}
+	}
+	
+	/*
+	 * convert one file, for callers that run many conversions in one JVM
+	 */
+	public static void convert(String inputFilename, String outputFilename) throws IOException, AFPParserException {
+		StraightConvert convert = new StraightConvert();
+		convert.applyOptions();
+		// conversions run side by side, their dumps would overwrite each other
+		convert.setDumpFonts(false);
+		convert.setInputParser(inputFilename);
+		try {
+			convert.setOutputDocument(outputFilename);
+			try {
+				convert.parse();
+			} finally {
+				convert.pdfOut.close();
+			}
+		} finally {
+			convert.close();
+		}
+	}
+
+	/*
+	 * convert a page range ("first-last", from 1) or group range (numbers or a group name) only.
+	 * the page index gives the offsets, so only the resource prefix, the resource groups
+	 * before the range and the selected pages are read.
+	 */
+	public static void convertRange(String inputFilename, String outputFilename, String pages, String groups) throws IOException, AFPParserException {
+		File file = new File(inputFilename);
+		MappedInputStream input = new MappedInputStream(file);
+		try {
+			PageIndex index = PageIndex.load(input, file);
+			int[] range = pages != null ? index.pageRange(pages) : index.groupRange(groups);
+			
+			BaseParser resources = new BaseParser();
+			resources.setDumpFonts(false);
+			resources.setInputParser(input.range(0, index.getFirstPageOffset()));
+			resources.parse();
+			// resources of concatenated spools, defined between pages
+			resources = ParallelConvert.addResourceGroups(input, index, resources, index.getFirstPageOffset(), index.getPageStart(range[0]));
+			
+			new ParallelConvert.RangeConversion(input, index, resources, range[0], range[1], new File(outputFilename)).call();
+		} finally {
+			input.close();
+		}
 	}
 
 	public static void main(String[] argv) {
@@ -178,6 +462,36 @@ public class StraightConvert extends BaseParser {
 		
 		String inputFilename = argv[0];
 		String outputFilename = argv[1];
+		
+		String pages = System.getProperty("afpdf.pages");
+		String groups = System.getProperty("afpdf.groups");
+		if (pages != null || groups != null) {
+			try {
+				convertRange(inputFilename, outputFilename, pages, groups);
+			} catch (IOException e) {
+				System.err.println("Problem with input or output file");
+				e.printStackTrace();
+				System.exit(1);
+			} catch (AFPParserException e) {
+				System.err.println("Parser exception");
+				e.printStackTrace();
+				System.exit(3);
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				System.err.println("Bad page or group range: " + e.getMessage());
+				System.exit(5);
+			}
+			printMetrics();
+			return;
+		}
+		
+		// one document per page group, pages in file order on one thread
+		boolean split = Boolean.getBoolean("afpdf.splitGroups");
+		int threads = Integer.getInteger("afpdf.threads", 1);
+		if (threads > 1 && !split) {
+			ParallelConvert.main(new String[] {inputFilename, outputFilename, String.valueOf(threads)});
+			return;
+		}
+		
 		StraightConvert convert = new StraightConvert();
 		
 		try {
@@ -188,9 +502,15 @@ public class StraightConvert extends BaseParser {
 			System.exit(1);
 		}
 		
+		convert.applyOptions();
+		
 		try {
-			convert.setOutputDocument(outputFilename);
-		} catch (FileNotFoundException e) {
+			if (split) {
+				convert.setOutputDirectory(outputFilename);
+			} else {
+				convert.setOutputDocument(outputFilename);
+			}
+		} catch (IOException e) {
 			System.err.println("Problem with output file " + outputFilename);
 			e.printStackTrace();
 			System.exit(2);
@@ -211,5 +531,16 @@ public class StraightConvert extends BaseParser {
 			e.printStackTrace();
 			System.exit(4);
 		}
+		
+		printMetrics();
+	}
+	
+	/*
+	 * end of run summary, when asked for with afpdf.metrics
+	 */
+	static void printMetrics() {
+		if (Boolean.getBoolean("afpdf.metrics")) {
+			System.err.print(ConversionMetrics.getInstance().report());
+		}
 	}
 }
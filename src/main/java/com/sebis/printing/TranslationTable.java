@@ -0,0 +1,115 @@
+/*  This file is a part of AFPDF - AFP/PDF transformer
+Copyright (C) 2019  Sebis Direct, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.sebis.printing;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * code point to unicode, decoded once through the charset into a char table.
+ * tables are immutable and shared by every code page and parser using the same charset.
+ *
+ * single byte tables have 256 entries. double byte tables have 64K, a pair the charset
+ * does not decode to one char maps like its second byte alone.
+ */
+public class TranslationTable {
+
+	private static final ConcurrentHashMap<String, TranslationTable> tables = new ConcurrentHashMap<String, TranslationTable>();
+
+	private final char[] chars;
+	private final boolean doubleByte;
+
+	private TranslationTable(char[] chars, boolean doubleByte) {
+		this.chars = chars;
+		this.doubleByte = doubleByte;
+	}
+
+	public static TranslationTable forCharset(Charset charset, boolean doubleByte) {
+		String key = charset.name() + (doubleByte ? "/DBCS" : "/SBCS");
+		return tables.computeIfAbsent(key, k -> build(charset, doubleByte));
+	}
+
+	private static TranslationTable build(Charset charset, boolean doubleByte) {
+		char[] single = new char[256];
+		String decoded = new String(allBytes(), charset);
+		for (int i = 0; i < 256; i++) {
+			single[i] = decoded.charAt(i);
+		}
+		if (!doubleByte) {
+			return new TranslationTable(single, false);
+		}
+
+		char[] chars = new char[0x10000];
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		byte[] pair = new byte[2];
+		for (int cp = 0; cp < 0x10000; cp++) {
+			chars[cp] = single[cp & 0xFF];
+			pair[0] = (byte) (cp >> 8);
+			pair[1] = (byte) cp;
+			try {
+				CharBuffer cb = decoder.reset().decode(ByteBuffer.wrap(pair));
+				if (cb.remaining() == 1) {
+					chars[cp] = cb.get(0);
+				}
+			} catch (CharacterCodingException e) {
+				// keep the single byte mapping
+			}
+		}
+		return new TranslationTable(chars, true);
+	}
+
+	private static byte[] allBytes() {
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			b[i] = (byte) i;
+		}
+		return b;
+	}
+
+	public char translate(int codePoint) {
+		return this.chars[this.doubleByte ? codePoint & 0xFFFF : codePoint & 0xFF];
+	}
+
+	/*
+	 * decode len bytes into dst, two bytes per char for double byte tables.
+	 * returns the number of chars written, dst must hold len chars.
+	 */
+	public int decode(byte[] src, int off, int len, char[] dst) {
+		int n = 0;
+		if (this.doubleByte) {
+			for (int i = off; i + 1 < off + len; i += 2) {
+				dst[n++] = this.chars[((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF)];
+			}
+		} else {
+			for (int i = off; i < off + len; i++) {
+				dst[n++] = this.chars[src[i] & 0xFF];
+			}
+		}
+		return n;
+	}
+
+	public boolean isDoubleByte() {
+		return doubleByte;
+	}
+}